@@ -0,0 +1,113 @@
+import java.util.Locale;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+// AudioFrameListener から渡されたフレームの解析を 1 つのスレッドで順に行う
+// Executors.newSingleThreadExecutor() の代わりに使う。待ち行列の長さを capacity までに抑え、
+// 解析が間に合わずにいっぱいになったときは policy に従ってフレームを捨てる。
+// 長時間動かしても待ち行列が伸び続ける (メモリを使い続ける、表示が遅れ続ける) ことはない。
+//
+// execute は Player / Recorder のスレッドから呼ばれるので、待つことはない。
+public final class AnalysisDispatcher implements Executor {
+
+    // 待ち行列がいっぱいのときの扱い
+    public enum DropPolicy {
+        DROP_OLDEST,    // 一番古いフレームを捨てて新しいフレームを入れる
+        DROP_NEWEST,    // 新しいフレームを捨てる
+        LATEST_ONLY;    // 最新のフレームだけを残す (待ち行列の長さは 1)
+
+        // コマンドラインの表記 (drop-oldest など) から
+        public static DropPolicy parse(String name){
+            return valueOf(name.trim().toUpperCase(Locale.ROOT).replace('-', '_'));
+        }
+    }
+
+    // 待ち行列の長さの既定値
+    public static final int DEFAULT_CAPACITY = 8;
+
+    private final ArrayBlockingQueue<Runnable> queue;
+    private final DropPolicy policy;
+    private final Thread worker;
+    private volatile boolean shutdown = false;
+
+    private final AtomicLong submitted = new AtomicLong();
+    private final AtomicLong processed = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+
+    public AnalysisDispatcher(DropPolicy policy){
+        this(DEFAULT_CAPACITY, policy);
+    }
+
+    public AnalysisDispatcher(int capacity, DropPolicy policy){
+        if(capacity < 1)
+            throw new IllegalArgumentException("capacity must be positive: " + capacity);
+        this.policy = policy;
+        this.queue = new ArrayBlockingQueue<>(policy == DropPolicy.LATEST_ONLY ? 1 : capacity);
+        this.worker = new Thread(this::run, "analysis-dispatcher");
+        worker.start();
+    }
+
+    // フレームの解析を待ち行列に入れる (いっぱいなら policy に従って捨てる)
+    @Override public void execute(Runnable task){
+        if(shutdown) return;
+        submitted.incrementAndGet();
+        switch(policy){
+            case DROP_NEWEST:
+                if(!queue.offer(task)) dropped.incrementAndGet();
+                break;
+            case DROP_OLDEST:
+            case LATEST_ONLY:
+                while(!queue.offer(task)){
+                    if(queue.poll() != null) dropped.incrementAndGet();
+                }
+                break;
+        }
+    }
+
+    private void run(){
+        while(!shutdown){
+            final Runnable task;
+            try {
+                task = queue.poll(100, TimeUnit.MILLISECONDS);
+            } catch(InterruptedException e){
+                break;
+            }
+            if(task == null) continue;
+            try {
+                task.run();
+            } catch(RuntimeException e){
+                e.printStackTrace();
+            }
+            processed.incrementAndGet();
+        }
+    }
+
+    // 解析スレッドを止める (待ち行列に残っているフレームは捨てる)
+    public void shutdown(){
+        shutdown = true;
+        worker.interrupt();
+        dropped.addAndGet(queue.size());
+        queue.clear();
+    }
+
+    public DropPolicy getPolicy(){ return policy; }
+
+    // execute に渡されたフレームの数
+    public long getSubmitted(){ return submitted.get(); }
+
+    // 解析を終えたフレームの数
+    public long getProcessed(){ return processed.get(); }
+
+    // 解析せずに捨てたフレームの数
+    public long getDropped(){ return dropped.get(); }
+
+    // 待ち行列にあるフレームの数
+    public int getQueued(){ return queue.size(); }
+
+    @Override public String toString(){
+        return String.format("%s: submitted = %d, processed = %d, dropped = %d, queued = %d",
+                             policy, getSubmitted(), getProcessed(), getDropped(), getQueued());
+    }
+}
@@ -0,0 +1,98 @@
+import java.util.Arrays;
+
+import jp.ac.kyoto_u.kuis.le4music.Le4MusicUtils;
+
+// ケプストラムとスペクトル包絡
+// 区間の長さで割った波形 (窓関数なし) → FFT → 20 log10 |X| (対数振幅スペクトル) → FFT をケプストラムとし、
+// 低次の K 項の実部を特徴量として、低次の K 項だけを逆変換したものをスペクトル包絡として取り出す。
+// (LearnSpeechRecog, LearnSpeechRecog_R, PlotSpectrumEnv の rfft → log → rfft → 切り捨て → irfft と同じ値)
+//
+// FFT は RealFFT の plan を使い、作業領域は作るときに一度だけ確保してフレーム間で使い回す。
+// 1 つのインスタンスは 1 つのスレッドからだけ使うこと (スレッドごとに作る)。
+public final class CepstrumExtractor {
+
+    private final int frameSize;
+    private final RealFFT fft;      // 波形 → スペクトル
+    private final RealFFT fft2;     // 対数振幅スペクトル → ケプストラム
+    private final double[] buf;     // 波形のスペクトル
+    private final double[] ceps;    // 対数振幅スペクトル → ケプストラム (その場で変換する)
+    private final double[] specLog; // 対数振幅スペクトル (length = fftSize/2 + 1)
+    private final double[] lifter;  // 低次の項だけを残したケプストラム
+    private final double[] env;     // スペクトル包絡の逆変換の出力
+
+    // frameSize : 1 回に解析する区間の長さ (サンプル数)
+    public CepstrumExtractor(int frameSize){
+        if(frameSize < 1)
+            throw new IllegalArgumentException("frameSize must be positive: " + frameSize);
+        this.frameSize = frameSize;
+        this.fft = RealFFT.of(Math.max(2, 1 << Le4MusicUtils.nextPow2(frameSize)));
+        this.fft2 = RealFFT.of(1 << Le4MusicUtils.nextPow2(fft.size2()));
+        this.buf = new double[fft.bufferSize()];
+        this.ceps = new double[fft2.bufferSize()];
+        this.specLog = new double[fft.size2()];
+        this.lifter = new double[fft2.bufferSize()];
+        this.env = new double[fft2.size()];
+    }
+
+    // samples[from .. from + frameSize) を解析する (足りない部分は 0)
+    // 結果は coefficients, specLog, envelope で取り出す
+    public void analyze(double[] samples, int from){
+        final int n = Math.max(0, Math.min(frameSize, samples.length - from));
+        for(int j = 0; j < n; j++){
+            buf[j] = samples[from + j] / frameSize;
+        }
+        Arrays.fill(buf, n, fft.size(), 0.0);
+        fft.forward(buf);
+        for(int k = 0; k < specLog.length; k++){
+            specLog[k] = 20.0 * Math.log10(Math.hypot(buf[2 * k], buf[2 * k + 1]));
+        }
+        System.arraycopy(specLog, 0, ceps, 0, specLog.length);
+        Arrays.fill(ceps, specLog.length, fft2.size(), 0.0);
+        fft2.forward(ceps);
+    }
+
+    // 直前に解析した区間のケプストラムの低次 out.length 項 (実部) を out に書き込む
+    public void coefficients(double[] out){
+        for(int d = 0; d < out.length; d++){
+            out[d] = ceps[2 * d];
+        }
+    }
+
+    // samples[from ..) から始まる区間のケプストラムの低次 out.length 項を out に書き込む
+    public void cepstrum(double[] samples, int from, double[] out){
+        analyze(samples, from);
+        coefficients(out);
+    }
+
+    // samples[from + i * shift ..) から始まる区間 i (0 <= i < out.length) のケプストラムの
+    // 低次 out[i].length 項を out[i] に書き込む
+    public void cepstra(double[] samples, int from, int shift, double[][] out){
+        for(int i = 0; i < out.length; i++){
+            cepstrum(samples, from + i * shift, out[i]);
+        }
+    }
+
+    // 直前に解析した区間の対数振幅スペクトル (dB) を out (length = spectrumLength()) に書き込む
+    public void specLog(double[] out){
+        System.arraycopy(specLog, 0, out, 0, specLog.length);
+    }
+
+    // 直前に解析した区間のスペクトル包絡 (ケプストラムの低次 k 項を逆変換したもの, dB) を
+    // out (length = spectrumLength()) に書き込む
+    public void envelope(int k, double[] out){
+        final int m = Math.min(2 * k, lifter.length);
+        System.arraycopy(ceps, 0, lifter, 0, m);
+        Arrays.fill(lifter, m, lifter.length, 0.0);
+        fft2.inverse(lifter, env);
+        System.arraycopy(env, 0, out, 0, specLog.length);
+    }
+
+    // 解析する区間の長さ
+    public int getFrameSize(){ return frameSize; }
+
+    // 波形の FFT の長さ
+    public int getFFTSize(){ return fft.size(); }
+
+    // 対数振幅スペクトル・スペクトル包絡の長さ (fftSize/2 + 1)
+    public int spectrumLength(){ return specLog.length; }
+}
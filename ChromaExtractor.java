@@ -0,0 +1,117 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+// クロマベクトルの計算
+// 各音名 (C, C#, ... , B) の 5 オクターブ分の窓 (基準音の ±1/30 オクターブ) に入る
+// 周波数ビンの表を (ナイキスト周波数, スペクトル長) ごとに一度だけ作り、
+// 各フレームは表にあるビンだけを 1 回なめて音名ごとに足し合わせる。
+// 従来の chromaPower (音名ごと・オクターブごとにスペクトル全体を走査) と同じ値になる。
+// float[] 版は単精度の振幅スペクトル (FeaturePipeline.processFloat) 用。
+public final class ChromaExtractor {
+
+    private static final ConcurrentHashMap<String, ChromaExtractor> tables = new ConcurrentHashMap<>();
+
+    // nyquist, fftSize2 に対応する表を返す (一度作った表は使い回す)
+    public static ChromaExtractor of(double nyquist, int fftSize2){
+        return tables.computeIfAbsent(nyquist + ":" + fftSize2,
+                                      key -> new ChromaExtractor(nyquist, fftSize2));
+    }
+
+    private final int[] start;      // 音名 c のビンは bins[start[c] .. start[c + 1])
+    private final int[] bins;       // 周波数ビン
+    private final int[] div;        // 1 + 音名 c のビン数
+
+    private ChromaExtractor(double nyquist, int fftSize2){
+        final double halfhalftone = Math.pow(2.0, 1.0/30.0);
+
+        // chromaPower と同じ順 (オクターブ → ビン) で各音名のビンを集める
+        final List<List<Integer>> table = new ArrayList<>();
+        for(int toneName = 0; toneName < 12; toneName++){
+            final List<Integer> list = new ArrayList<>();
+            final double toneFreq = 440 * Math.pow(2, ((60 + toneName - 69) / 12.0));
+            for(int i = 0; i <= 4; i++){
+                final double baseFreq = toneFreq * Math.pow(2.0, (double)(i-2));
+                for(int j = 0; j < fftSize2; j++){
+                    final double freq = nyquist / fftSize2 * j;
+                    if(freq >= baseFreq / halfhalftone && freq <= baseFreq * halfhalftone){
+                        list.add(j);
+                    }
+                }
+            }
+            table.add(list);
+        }
+
+        this.start = new int[13];
+        this.div = new int[12];
+        for(int c = 0; c < 12; c++){
+            start[c + 1] = start[c] + table.get(c).size();
+            div[c] = 1 + table.get(c).size();
+        }
+        this.bins = new int[start[12]];
+        for(int c = 0; c < 12; c++){
+            for(int k = 0; k < table.get(c).size(); k++){
+                bins[start[c] + k] = table.get(c).get(k);
+            }
+        }
+    }
+
+    // 各音名のパワー (chromaPower 相当) を power[0 .. 12) に書き込む
+    public void chromaPower(double[] spec, double[] power){
+        for(int c = 0; c < 12; c++){
+            double powerSum = 0;
+            for(int k = start[c]; k < start[c + 1]; k++){
+                powerSum += spec[bins[k]];
+            }
+            power[c] = powerSum / div[c];
+        }
+    }
+
+    // 音名 toneName のパワー
+    public double chromaPower(double[] spec, int toneName){
+        double powerSum = 0;
+        for(int k = start[toneName]; k < start[toneName + 1]; k++){
+            powerSum += spec[bins[k]];
+        }
+        return powerSum / div[toneName];
+    }
+
+    // 1 フレーム分のクロマベクトル (makeChromaVector と同じ形式, length = 17)
+    // 0 <= j < 12 : -0.15 / 音名 j のパワー, 12 <= j < 17 : 0
+    public void chromaVector(double[] spec, double[] chroma){
+        chromaPower(spec, chroma);
+        for(int j = 0; j < 12; j++){
+            chroma[j] = -0.15 / chroma[j];
+            if(chroma[j] == 0) chroma[j] = Integer.MIN_VALUE;
+        }
+        for(int j = 12; j < chroma.length; j++){
+            chroma[j] = 0;
+        }
+    }
+
+    // 各音名のパワーを power[0 .. 12) に書き込む (単精度)
+    public void chromaPower(float[] spec, float[] power){
+        for(int c = 0; c < 12; c++){
+            float powerSum = 0;
+            for(int k = start[c]; k < start[c + 1]; k++){
+                powerSum += spec[bins[k]];
+            }
+            power[c] = powerSum / div[c];
+        }
+    }
+
+    // 1 フレーム分のクロマベクトル (単精度, chromaVector(double[], double[]) と同じ形式)
+    public void chromaVector(float[] spec, float[] chroma){
+        chromaPower(spec, chroma);
+        for(int j = 0; j < 12; j++){
+            chroma[j] = -0.15f / chroma[j];
+            if(chroma[j] == 0) chroma[j] = Integer.MIN_VALUE;
+        }
+        for(int j = 12; j < chroma.length; j++){
+            chroma[j] = 0;
+        }
+    }
+
+    // 表にあるビンの総数 (1 フレームあたりの加算回数)
+    public int size(){ return bins.length; }
+}
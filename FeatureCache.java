@@ -0,0 +1,171 @@
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import javax.sound.sampled.AudioInputStream;
+import javax.sound.sampled.AudioSystem;
+import javax.sound.sampled.UnsupportedAudioFileException;
+
+import jp.ac.kyoto_u.kuis.le4music.Le4MusicUtils;
+
+// 再生する WAV の特徴量 (スペクトログラム・音高) を先に求めておくキャッシュ
+// ファイルの中身は再生前に分かっているので、読み込み時にバックグラウンドのスレッドで
+// Player と同じフレーム (長さ frameSize, 間隔 shiftSize) ごとに一度だけ解析し、フレーム番号で引けるようにする。
+// 再生中の AudioFrameListener は位置 (サンプル数) から表を引くだけなので、窓関数も FFT も要らない。
+// ループ再生で同じ区間を何度再生しても解析し直さない。
+//
+// 解析は先頭から順に進み、終わったフレームから引ける (まだのフレームは呼び出し側でその場で求めること)。
+// スペクトログラムは 0.01 dB 単位の short で持つ (1 フレーム (fftSize/2 + 1) * 2 バイト)。
+// 音高 (SHS) は採点のお手本 (KaraokeScorer) に使う (awaitNotes)。
+public final class FeatureCache {
+
+    // 解析結果の表 (足りなくなったら広げた写しを作り、tables ごと差し替える)
+    private static final class Tables {
+        final short[][] specLog;
+        final float[] notes;
+
+        Tables(short[][] specLog, float[] notes){
+            this.specLog = specLog;
+            this.notes = notes;
+        }
+    }
+
+    private final double sampleRate;
+    private final int frameSize;
+    private final int shiftSize;
+    private final int fftSize2;
+    private final long length;              // 全サンプル数 (分からなければ負)
+    private final Thread worker;
+
+    // 読み出す側は ready を読んでから tables を読み、ready 未満のフレームだけを見る。
+    // 表を広げるときは tables を差し替えてから ready を進めるので、見えた ready 未満のフレームは
+    // 必ず見えた tables に書かれている
+    private volatile Tables tables = new Tables(new short[0][], new float[0]);
+    private volatile int ready = 0;
+    private volatile boolean complete = false;
+    private volatile Throwable failure = null;
+
+    // wavFile の解析をバックグラウンドで始める
+    public static FeatureCache start(File wavFile, int frameSize, int shiftSize)
+        throws IOException,
+               UnsupportedAudioFileException {
+        final AudioInputStream stream = AudioSystem.getAudioInputStream(wavFile);
+        final FeatureCache cache = new FeatureCache(stream, frameSize, shiftSize);
+        cache.worker.start();
+        return cache;
+    }
+
+    private FeatureCache(AudioInputStream stream, int frameSize, int shiftSize){
+        if(frameSize < 1 || shiftSize < 1)
+            throw new IllegalArgumentException(
+                "frameSize and shiftSize must be positive: frameSize = " + frameSize +
+                ", shiftSize = " + shiftSize
+            );
+        this.sampleRate = stream.getFormat().getSampleRate();
+        this.frameSize = frameSize;
+        this.shiftSize = shiftSize;
+        this.fftSize2 = ((1 << Le4MusicUtils.nextPow2(frameSize)) >> 1) + 1;
+        this.length = stream.getFrameLength();
+        this.worker = new Thread(() -> run(stream), "feature-cache");
+        worker.setDaemon(true);
+        worker.setPriority(Thread.MIN_PRIORITY);
+    }
+
+    // 先頭から順に解析する (スペクトログラムの求め方は FeaturePipeline と同じ)
+    private void run(AudioInputStream stream){
+        final FeaturePipeline pipeline =
+            new FeaturePipeline(sampleRate, frameSize / sampleRate, shiftSize / sampleRate);
+        final RealFFT fft = pipeline.getFFT();
+        final double[] buf = new double[fft.bufferSize()];
+        final double[] mag = new double[fftSize2];
+        final SHSEngine shs = KaraokeScorer.engine(sampleRate * 0.5, fftSize2);
+        final double[] score = new double[shs.candidates()];
+        if(length > 0) grow((int)(length / shiftSize));
+
+        try(WaveformStream in = new WaveformStream(stream, frameSize, shiftSize)){
+            WaveformStream.Block block;
+            while((block = in.next()) != null){
+                final double[] samples = block.samples();
+                for(int k = 0; k < block.frames(); k++){
+                    final int i = block.firstFrame() + k;
+                    final int from = block.frameStart(k);
+                    if(i >= tables.notes.length) grow(Math.max(i + 1, tables.notes.length * 2));
+                    final Tables t = tables;
+
+                    /* 対数振幅スペクトル */
+                    pipeline.frameAt(samples, from, buf);
+                    fft.magnitude(buf, mag);
+                    final short[] row = new short[fftSize2];
+                    for(int j = 0; j < fftSize2; j++){
+                        final double db = Math.round(20.0 * Math.log10(mag[j]) * 100.0);
+                        row[j] = (short)Math.max(Short.MIN_VALUE, Math.min(Short.MAX_VALUE, db));
+                    }
+                    t.specLog[i] = row;
+
+                    /* 音高 (SHS, KaraokeScorer.analyze と同じ求め方) */
+                    t.notes[i] = KaraokeScorer.note(shs, mag, score);
+
+                    ready = i + 1;
+                }
+            }
+        } catch(IOException | RuntimeException e){
+            failure = e;
+        }
+        complete = true;
+    }
+
+    // 表を n フレーム分に広げる (写しを作ってから差し替えるので、読み出し中のスレッドは古い表を読み続けてよい)
+    private void grow(int n){
+        final Tables t = tables;
+        if(n <= t.notes.length) return;
+        tables = new Tables(Arrays.copyOf(t.specLog, n), Arrays.copyOf(t.notes, n));
+    }
+
+    // 位置 position (サンプル数) から始まるフレームの番号 (まだ解析していなければ -1)
+    // 解析が終わっていて position がファイルの長さを超えていれば、先頭に戻って数える (ループ再生)
+    public int frameIndex(long position){
+        final int n = ready;
+        long p = position;
+        if(complete && length > 0 && p >= length) p %= length;
+        final long i = Math.round((double)p / shiftSize);
+        return i >= 0 && i < n ? (int)i : -1;
+    }
+
+    // 位置 position のフレームの対数振幅スペクトル (dB) を out (長さ fftSize/2 + 1) に書き込む
+    // まだ解析していなければ false を返す (out は変更しない)
+    public boolean specLog(long position, double[] out){
+        final int i = frameIndex(position);
+        if(i < 0) return false;
+        final short[] row = tables.specLog[i];
+        for(int j = 0; j < fftSize2; j++){
+            out[j] = row[j] / 100.0;
+        }
+        return true;
+    }
+
+    // 全フレームの音高 (ノートナンバー, 音高なしは NaN, フレーム i は位置 i * shiftSize)
+    // 解析が終わるまで待つ。解析に失敗したときはその例外を IOException にして投げる
+    public float[] awaitNotes()
+        throws IOException,
+               InterruptedException {
+        worker.join();
+        if(failure != null)
+            throw new IOException("feature analysis failed", failure);
+        final int n = ready;
+        return Arrays.copyOf(tables.notes, n);
+    }
+
+    // 解析済みのフレーム数
+    public int getReadyFrames(){ return ready; }
+
+    // 解析が終わったか (失敗した場合も含む)
+    public boolean isComplete(){ return complete; }
+
+    // 解析中に起きた例外 (なければ null)
+    public Throwable getFailure(){ return failure; }
+
+    public int getFrameSize(){ return frameSize; }
+
+    public int getShiftSize(){ return shiftSize; }
+
+    public int getSpectrumLength(){ return fftSize2; }
+}
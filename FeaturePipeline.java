@@ -0,0 +1,190 @@
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.commons.math3.util.MathArrays;
+
+import jp.ac.kyoto_u.kuis.le4music.Le4MusicUtils;
+
+// 短時間フーリエ変換を一度だけ行い、振幅スペクトログラムを各解析段で共有する
+// (スペクトログラム、クロマ、和音、SHS によるメロディ推定など)
+// processFloat は波形・窓関数・FFT・振幅を単精度 (float) で求める版 (メモリは半分)。
+// double 版との差は、振幅でフレームの最大振幅の 1e-6 倍以内、クロマベクトルで相対 1e-5 以内。
+public final class FeaturePipeline {
+
+    // フレームごとの振幅スペクトルを受け取る解析段
+    public interface FrameListener {
+        void process(double[] specAbs, int frameIndex);
+    }
+
+    private final double sampleRate;
+    private final double frameDuration;
+    private final double shiftDuration;
+    private final int frameSize;
+    private final int fftSize;
+    private final int fftSize2;
+    private final int shiftSize;
+    private final double[] window;
+    private final float[] windowF;
+    private final RealFFT fft;
+    private final List<FrameListener> listeners = new ArrayList<>();
+    private int parallelism = FrameParallel.defaultParallelism();
+
+    public FeaturePipeline(double sampleRate, double frameDuration, double shiftDuration){
+        this.sampleRate = sampleRate;
+        this.frameDuration = frameDuration;
+        this.shiftDuration = shiftDuration;
+
+        /* 窓関数とFFTのサンプル数 */
+        this.frameSize = (int)Math.round(frameDuration * sampleRate);
+        this.fftSize = 1 << Le4MusicUtils.nextPow2(frameSize);
+        this.fftSize2 = (fftSize >> 1) + 1;
+
+        /* シフトのサンプル数 */
+        this.shiftSize = (int)Math.round(shiftDuration * sampleRate);
+
+        /* 窓関数を求め正規化する */
+        this.window = MathArrays.normalizeArray(
+            Arrays.copyOf(Le4MusicUtils.hanning(frameSize), fftSize), 1.0
+        );
+        this.windowF = new float[fftSize];
+        for(int j = 0; j < fftSize; j++){
+            windowF[j] = (float)window[j];
+        }
+        this.fft = RealFFT.of(fftSize);
+    }
+
+    // 解析段を登録する (登録順にフレームが渡される)
+    public void addFrameListener(FrameListener listener){
+        listeners.add(listener);
+    }
+
+    // 並列度を設定する (1 なら逐次処理、結果はどちらでも同じ)
+    public void setParallelism(int parallelism){
+        this.parallelism = Math.max(1, parallelism);
+    }
+
+    public int getParallelism(){ return parallelism; }
+
+    // 振幅スペクトログラムを求め、各フレームを登録された解析段に渡す
+    // specAbs[i] : フレーム i の振幅スペクトル (length = fftSize2)
+    // 解析段にはすべてのフレームの変換が終わってから、フレーム順に呼び出し元のスレッドで渡す
+    public double[][] process(double[] waveform){
+        final int frames = frameCount(waveform.length);
+        final double[][] specAbs = new double[frames][fftSize2];
+
+        /* 短時間フーリエ変換本体 (作業領域はワーカーごとに作り、フレーム間で使い回す) */
+        FrameParallel.forEach(frames, parallelism,
+                              () -> new double[fft.bufferSize()],
+                              (buf, i) -> {
+                                  frame(waveform, i, buf);
+                                  fft.magnitude(buf, specAbs[i]);
+                              });
+        for(int i = 0; i < frames; i++){
+            for(FrameListener listener : listeners){
+                listener.process(specAbs[i], i);
+            }
+        }
+
+        return specAbs;
+    }
+
+    // 単精度版の振幅スペクトログラム (解析段には渡さない)
+    // specAbs[i] : フレーム i の振幅スペクトル (length = fftSize2)
+    public float[][] processFloat(float[] waveform){
+        final int frames = frameCount(waveform.length);
+        final float[][] specAbs = new float[frames][fftSize2];
+        FrameParallel.forEach(frames, parallelism,
+                              () -> new float[fft.bufferSize()],
+                              (buf, i) -> {
+                                  frameAt(waveform, i * shiftSize, buf);
+                                  fft.magnitude(buf, specAbs[i]);
+                              });
+        return specAbs;
+    }
+
+    // WAV を少しずつ読みながら短時間フーリエ変換し、各フレームを登録された解析段に渡す
+    // 波形全体も振幅スペクトログラム全体もメモリに置かない。
+    // 解析段に渡す振幅スペクトルの配列は使い回すので、残すときは解析段でコピーすること
+    // 戻り値はフレーム数 (process(double[]) と同じ)
+    public int process(WaveformStream in) throws IOException {
+        if(in.getSpan() < frameSize || in.getShiftSize() != shiftSize)
+            throw new IllegalArgumentException(
+                "stream does not match this pipeline: span = " + in.getSpan() +
+                ", shiftSize = " + in.getShiftSize()
+            );
+
+        // 作業領域はワーカーごとに一度だけ作り、全ブロックで使い回す
+        final ThreadLocal<double[]> scratch = ThreadLocal.withInitial(() -> new double[fft.bufferSize()]);
+        double[][] specAbs = new double[0][];
+        int frames = 0;
+        WaveformStream.Block block;
+        while((block = in.next()) != null){
+            final WaveformStream.Block b = block;
+            if(specAbs.length < b.frames()) specAbs = new double[b.frames()][fftSize2];
+            final double[][] spec = specAbs;
+            FrameParallel.forEach(b.frames(), parallelism, scratch,
+                                  (buf, k) -> {
+                                      frameAt(b.samples(), b.frameStart(k), buf);
+                                      fft.magnitude(buf, spec[k]);
+                                  });
+            for(int k = 0; k < b.frames(); k++){
+                for(FrameListener listener : listeners){
+                    listener.process(spec[k], b.firstFrame() + k);
+                }
+            }
+            frames = b.firstFrame() + b.frames();
+        }
+        return frames;
+    }
+
+    // フレーム数 (Le4MusicUtils.sliding と同じく、末尾のフレームは 0 で埋める)
+    public int frameCount(int length){
+        return length / shiftSize;
+    }
+
+    // フレーム i を切り出して窓関数をかけ、buf[0 .. fftSize) に書き込む
+    public void frame(double[] waveform, int i, double[] buf){
+        frameAt(waveform, i * shiftSize, buf);
+    }
+
+    // samples[from ..) から 1 フレームを切り出して窓関数をかけ、buf[0 .. fftSize) に書き込む
+    public void frameAt(double[] samples, int from, double[] buf){
+        final int n = Math.max(0, Math.min(fftSize, samples.length - from));
+        for(int j = 0; j < n; j++){
+            buf[j] = samples[from + j] * window[j];
+        }
+        Arrays.fill(buf, n, fftSize, 0.0);
+    }
+
+    // samples[from ..) から 1 フレームを切り出して窓関数をかけ、buf[0 .. fftSize) に書き込む (単精度)
+    public void frameAt(float[] samples, int from, float[] buf){
+        final int n = Math.max(0, Math.min(fftSize, samples.length - from));
+        for(int j = 0; j < n; j++){
+            buf[j] = samples[from + j] * windowF[j];
+        }
+        Arrays.fill(buf, n, fftSize, 0f);
+    }
+
+    // 窓関数 (length = fftSize, 正規化済み)
+    public double[] getWindow(){ return window; }
+
+    public RealFFT getFFT(){ return fft; }
+
+    public double getSampleRate(){ return sampleRate; }
+
+    public double getNyquist(){ return sampleRate * 0.5; }
+
+    public double getFrameDuration(){ return frameDuration; }
+
+    public double getShiftDuration(){ return shiftDuration; }
+
+    public int getFrameSize(){ return frameSize; }
+
+    public int getFFTSize(){ return fftSize; }
+
+    public int getFFTSize2(){ return fftSize2; }
+
+    public int getShiftSize(){ return shiftSize; }
+}
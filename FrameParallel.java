@@ -0,0 +1,108 @@
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.function.Supplier;
+
+// フレーム単位の並列処理
+// 各フレームの解析 (STFT, 自己相関, SHS など) は互いに独立なので、フレーム番号の区間を
+// fork-join で分割して並列に処理する。作業領域 (FFT のバッファや PitchTracker) は
+// ワーカースレッドごとに scratch で作り、そのスレッドの中で使い回す。
+// 各フレームの結果はフレーム番号で決まる場所に書くこと。そうすれば逐次処理と同じ結果になる。
+//
+// 並列度はシステムプロパティ le4m.parallelism で指定できる (既定値はプロセッサ数)
+// 1 以下なら呼び出し元のスレッドで逐次処理する。
+//
+// プールは並列度ごとに 1 つだけ作り、使い回す (呼び出しのたびにスレッドを起動・停止しない)。
+// 並列度が共通プールと同じなら ForkJoinPool.commonPool() を使う。
+// ブロックごとに何度も呼ぶ場合は、作業領域の ThreadLocal もループの外で一度だけ作って渡すこと。
+public final class FrameParallel {
+
+    // 1 つのタスクが受け持つフレーム数の下限
+    private static final int MIN_CHUNK = 16;
+
+    // 並列度ごとのプール (使うときに作り、プログラムが終わるまで使い回す; ワーカーはデーモンスレッド)
+    private static final ConcurrentMap<Integer, ForkJoinPool> pools = new ConcurrentHashMap<>();
+
+    // フレーム i の処理 (scratch はこのワーカー専用の作業領域)
+    public interface FrameTask<S> {
+        void process(S scratch, int frameIndex);
+    }
+
+    private FrameParallel(){}
+
+    // 並列度の既定値
+    public static int defaultParallelism(){
+        return Math.max(1, Integer.getInteger("le4m.parallelism",
+                                              Runtime.getRuntime().availableProcessors()));
+    }
+
+    // 並列度 parallelism のプール
+    static ForkJoinPool pool(int parallelism){
+        final ForkJoinPool common = ForkJoinPool.commonPool();
+        if(parallelism == common.getParallelism())
+            return common;
+        return pools.computeIfAbsent(parallelism, ForkJoinPool::new);
+    }
+
+    // フレーム 0 .. frames-1 を並列度 parallelism で処理する (全フレームの処理が終わるまで戻らない)
+    // 作業領域はこの呼び出しの中でワーカーごとに作る
+    public static <S> void forEach(int frames, int parallelism,
+                                   Supplier<S> scratch, FrameTask<S> task){
+        if(parallelism <= 1 || frames <= MIN_CHUNK){
+            final S s = scratch.get();
+            for(int i = 0; i < frames; i++){
+                task.process(s, i);
+            }
+            return;
+        }
+        forEach(frames, parallelism, ThreadLocal.withInitial(scratch), task);
+    }
+
+    // 作業領域を呼び出し元の scratch (ThreadLocal) から取り出す版
+    // 同じ scratch を何度も渡せば、ワーカーの作業領域は呼び出しをまたいで使い回される
+    public static <S> void forEach(int frames, int parallelism,
+                                   ThreadLocal<S> scratch, FrameTask<S> task){
+        if(parallelism <= 1 || frames <= MIN_CHUNK){
+            final S s = scratch.get();
+            for(int i = 0; i < frames; i++){
+                task.process(s, i);
+            }
+            return;
+        }
+        final int chunk = Math.max(MIN_CHUNK, frames / (parallelism * 4));
+        pool(parallelism).invoke(new Range<>(0, frames, chunk, scratch, task));
+    }
+
+    // 作業領域を使わない処理
+    public static void forEach(int frames, int parallelism, FrameTask<Void> task){
+        forEach(frames, parallelism, () -> null, task);
+    }
+
+    // フレーム番号の区間 [from, to) を半分ずつに分けて処理する
+    private static final class Range<S> extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final int from, to, chunk;
+        private final ThreadLocal<S> local;
+        private final FrameTask<S> task;
+
+        Range(int from, int to, int chunk, ThreadLocal<S> local, FrameTask<S> task){
+            this.from = from; this.to = to; this.chunk = chunk;
+            this.local = local; this.task = task;
+        }
+
+        @Override protected void compute(){
+            if(to - from <= chunk){
+                final S s = local.get();
+                for(int i = from; i < to; i++){
+                    task.process(s, i);
+                }
+                return;
+            }
+            final int mid = (from + to) >>> 1;
+            invokeAll(new Range<>(from, mid, chunk, local, task),
+                      new Range<>(mid, to, chunk, local, task));
+        }
+    }
+}
@@ -0,0 +1,132 @@
+// 対角共分散の正規分布による対数尤度の計算 (母音認識の各クラス)
+//   log p(x | v) = -1/2 Σ_d log(2π sigma2[v][d]) - Σ_d (x[d] - mu[v][d])^2 / (2 sigma2[v][d])
+// クラスごとの定数項 (第 1 項) と 1 / (2 sigma2) はモデルから一度だけ求めておき、
+// フレームごとには引き算・掛け算・足し算だけを行う (log も pow も割り算も使わない)。
+// 平均と 1 / (2 sigma2) はクラス × 次元の 1 本の配列に並べる。
+//
+// 以前の式 -(1 / 2 * log10(sigma2) + ...) は 1 / 2 が整数の割り算で 0 になり、定数項が消えていた。
+// 第 2 項は自然対数の尺度なので、定数項も自然対数で求める。
+//
+// score(double[][]) は複数フレームをまとめて計算する。フレームを次元ごとに並べ替えてから、
+// 「全フレームについて同じ計算」をする単純なループにするので、JIT が SIMD 命令にしやすい。
+// インスタンスは不変なので複数スレッドから共有してよい。
+public final class GaussianScorer {
+
+    private final int classes;
+    private final int dims;
+    private final double[] norm;        // クラス v の定数項 -1/2 Σ_d log(2π sigma2[v][d])
+    private final double[] mean;        // [v * dims + d] = mu[v][d]
+    private final double[] weight;      // [v * dims + d] = 1 / (2 sigma2[v][d])
+
+    public GaussianScorer(VowelModel model){
+        this.classes = model.vowels();
+        this.dims = model.dimensions();
+        this.norm = new double[classes];
+        this.mean = new double[classes * dims];
+        this.weight = new double[classes * dims];
+        for(int v = 0; v < classes; v++){
+            final double[] mu = model.getMu(v), sigma2 = model.getSigma2(v);
+            for(int d = 0; d < dims; d++){
+                norm[v] -= 0.5 * Math.log(2.0 * Math.PI * sigma2[d]);
+                mean[v * dims + d] = mu[d];
+                weight[v * dims + d] = 1.0 / (2.0 * sigma2[d]);
+            }
+        }
+    }
+
+    // フレーム x (length = dims) のクラスごとの対数尤度を out (length = classes) に書き込む
+    public void score(double[] x, double[] out){
+        for(int v = 0; v < classes; v++){
+            final int off = v * dims;
+            double acc = norm[v];
+            for(int d = 0; d < dims; d++){
+                final double diff = x[d] - mean[off + d];
+                acc -= diff * diff * weight[off + d];
+            }
+            out[v] = acc;
+        }
+    }
+
+    // フレーム x の対数尤度が最大のクラス
+    public int classify(double[] x, double[] scratch){
+        score(x, scratch);
+        return argmax(scratch);
+    }
+
+    // 複数フレーム frames[n] (length = dims) の対数尤度 (戻り値は [フレーム][クラス])
+    public double[][] score(double[][] frames){
+        final int n = frames.length;
+        final double[] acc = new double[classes * n];
+        scoreTransposed(transpose(frames), n, acc);
+        final double[][] out = new double[n][classes];
+        for(int v = 0; v < classes; v++){
+            for(int i = 0; i < n; i++){
+                out[i][v] = acc[v * n + i];
+            }
+        }
+        return out;
+    }
+
+    // 複数フレームのそれぞれで対数尤度が最大のクラス
+    public int[] classify(double[][] frames){
+        final int n = frames.length;
+        final double[] acc = new double[classes * n];
+        scoreTransposed(transpose(frames), n, acc);
+        final int[] best = new int[n];
+        for(int v = 1; v < classes; v++){
+            for(int i = 0; i < n; i++){
+                if(acc[best[i] * n + i] <= acc[v * n + i]) best[i] = v;
+            }
+        }
+        return best;
+    }
+
+    // 次元ごとに並べたフレーム xt[d * n + i] の対数尤度を out[v * n + i] に書き込む
+    // 内側のループは要素ごとの独立な計算 (和をとらない) なので、ベクトル化できる
+    public void scoreTransposed(double[] xt, int n, double[] out){
+        for(int v = 0; v < classes; v++){
+            final int o = v * n;
+            final double c = norm[v];
+            for(int i = 0; i < n; i++){
+                out[o + i] = c;
+            }
+            for(int d = 0; d < dims; d++){
+                final double m = mean[v * dims + d];
+                final double w = weight[v * dims + d];
+                final int x = d * n;
+                for(int i = 0; i < n; i++){
+                    final double diff = xt[x + i] - m;
+                    out[o + i] -= diff * diff * w;
+                }
+            }
+        }
+    }
+
+    // [フレーム][次元] を [次元 * n + フレーム] に並べ替える
+    private double[] transpose(double[][] frames){
+        final int n = frames.length;
+        final double[] xt = new double[dims * n];
+        for(int i = 0; i < n; i++){
+            final double[] x = frames[i];
+            for(int d = 0; d < dims; d++){
+                xt[d * n + i] = x[d];
+            }
+        }
+        return xt;
+    }
+
+    // 最大値の添字 (同じ値なら後のもの)
+    public static int argmax(double[] arr){
+        int argmax = 0;
+        for(int i = 1; i < arr.length; i++){
+            if(arr[argmax] <= arr[i]) argmax = i;
+        }
+        return argmax;
+    }
+
+    // クラスの数
+    public int classes(){ return classes; }
+
+    // 次元数
+    public int dimensions(){ return dims; }
+}
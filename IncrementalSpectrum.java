@@ -0,0 +1,177 @@
+import java.util.Arrays;
+
+// 再生・録音中のフレーム (Player / Recorder の AudioFrameListener) の振幅スペクトルを順に求める
+// 連続するフレームはほとんど重なっている (フレーム長 0.2 秒に対して間隔 0.01 秒など) ので、
+// 必要なビンが少ないときはスライディング DFT で、前のフレームの値から新しく入ったサンプルの分だけ更新する。
+// そうでなければ作業領域を使い回して FFT (RealFFT) で求める (フレームごとに Complex[] を作らない)。
+// どちらを使うかは、フレームの間隔 hop とビンの数から見積もった計算量で決める。
+//
+// スペクトルは FeaturePipeline と同じく、窓関数をかけて fftSize まで 0 で埋めたフレームの DFT の振幅。
+// スライディング DFT では窓関数を a - b cos(2π m / L) の形 (ハニング窓など) に限り、
+// 窓をかけた DFT を窓なしの DFT 3 つ (周波数 ω, ω ± 2π / L) の和として求める。
+// 丸め誤差がたまらないように、RESYNC サンプルごとに直接計算し直す。
+//
+// 1 つのインスタンスは 1 つのスレッド (データ処理スレッド) からだけ使うこと。
+public final class IncrementalSpectrum {
+
+    // スライディング DFT の値を直接計算し直す間隔 (サンプル数)
+    private static final long RESYNC = 1L << 22;
+
+    private final int frameSize;
+    private final int fftSize;
+    private final int[] bins;           // 求めるビン (null なら全部)
+    private final boolean sliding;
+
+    /* FFT */
+    private final double[] window;
+    private final RealFFT fft;
+    private final double[] buf;
+    private final double[] mag;
+
+    /* スライディング DFT (ビン j の 3 つの周波数 ω - θ, ω, ω + θ の値を acc 3j, 3j+1, 3j+2 に持つ) */
+    private final double a, b;          // 窓関数 a - b cos(θ m) の係数
+    private final double[] re, im;      // 窓なしの DFT
+    private final double[] rotRe, rotIm;    // e^{jω}
+    private final double[] tailRe, tailIm;  // e^{-jω(N-1)}
+    private final double[] omega;
+    private final double[] prev;        // 前のフレーム
+    private long prevPosition = Long.MIN_VALUE;
+    private long sinceResync = 0;
+
+    // window : フレームにかける窓関数 (長さがフレーム長), fftSize : 0 で埋めた後の長さ
+    // bins : 求めるビン (null なら 0 .. fftSize/2 の全部), hop : フレームの間隔の見込み (サンプル数)
+    public IncrementalSpectrum(double[] window, int fftSize, int[] bins, int hop){
+        this.frameSize = window.length;
+        this.fftSize = fftSize;
+        this.bins = bins == null ? null : bins.clone();
+        this.window = window.clone();
+        this.fft = RealFFT.of(fftSize);
+        this.buf = new double[fft.bufferSize()];
+        this.mag = new double[fft.size2()];
+
+        // 窓関数が a - b cos(2π m / L) の形なら、スライディング DFT を使えるかを計算量で決める
+        final double[] ab = cosineWindow(window);
+        final int count = bins == null ? fft.size2() : bins.length;
+        final double slidingCost = 3.0 * count * Math.max(1, hop) * 4.0;
+        final double fftCost = frameSize + 2.5 * fftSize * (Math.log(fftSize) / Math.log(2)) + fft.size2();
+        this.sliding = ab != null && slidingCost < fftCost;
+
+        final int acc = sliding ? 3 * count : 0;
+        this.a = ab != null ? ab[0] : 0;
+        this.b = ab != null ? ab[1] : 0;
+        final double theta = ab != null ? 2.0 * Math.PI / ab[2] : 0;
+        this.re = new double[acc];
+        this.im = new double[acc];
+        this.rotRe = new double[acc];
+        this.rotIm = new double[acc];
+        this.tailRe = new double[acc];
+        this.tailIm = new double[acc];
+        this.omega = new double[acc];
+        for(int j = 0; j < acc; j++){
+            final int k = bins == null ? j / 3 : bins[j / 3];
+            omega[j] = 2.0 * Math.PI * k / fftSize + (j % 3 - 1) * theta;
+            rotRe[j] = Math.cos(omega[j]);
+            rotIm[j] = Math.sin(omega[j]);
+            tailRe[j] = Math.cos(omega[j] * (frameSize - 1));
+            tailIm[j] = -Math.sin(omega[j] * (frameSize - 1));
+        }
+        this.prev = new double[sliding ? frameSize : 0];
+    }
+
+    // スライディング DFT を使っているか
+    public boolean isSliding(){ return sliding; }
+
+    // position から始まるフレーム frame の振幅スペクトルを spec (長さ fftSize/2 + 1) に書き込む
+    // bins を指定したときは、spec のうちそのビンだけを書き込む
+    // position は AudioFrameListener に渡される位置 (サンプル数)。前のフレームとの差が
+    // フレーム長以上・負 (ループ再生など) のときは、前のフレームを使わずに計算する
+    public void update(double[] frame, long position, double[] spec){
+        if(frame.length != frameSize)
+            throw new IllegalArgumentException(
+                "frame length is " + frame.length + ", expected " + frameSize
+            );
+        if(!sliding){
+            Arrays.fill(buf, 0.0);
+            for(int m = 0; m < frameSize; m++){
+                buf[m] = frame[m] * window[m];
+            }
+            fft.magnitude(buf, mag);
+            if(bins == null){
+                System.arraycopy(mag, 0, spec, 0, mag.length);
+            }else{
+                for(int k : bins) spec[k] = mag[k];
+            }
+            return;
+        }
+
+        final long delta = position - prevPosition;
+        if(prevPosition == Long.MIN_VALUE || delta < 0 || delta >= frameSize || sinceResync >= RESYNC){
+            resync(frame);
+        }else{
+            slide(frame, (int)delta);
+        }
+        System.arraycopy(frame, 0, prev, 0, frameSize);
+        prevPosition = position;
+
+        // 窓をかけた DFT = a X(ω) - b/2 (X(ω - θ) + X(ω + θ))
+        final int count = re.length / 3;
+        for(int j = 0; j < count; j++){
+            final double xr = a * re[3 * j + 1] - 0.5 * b * (re[3 * j] + re[3 * j + 2]);
+            final double xi = a * im[3 * j + 1] - 0.5 * b * (im[3 * j] + im[3 * j + 2]);
+            spec[bins == null ? j : bins[j]] = Math.hypot(xr, xi);
+        }
+    }
+
+    // d サンプル進める : X' = e^{jω} (X - x_old) + x_new e^{-jω(N-1)}
+    private void slide(double[] frame, int d){
+        for(int j = 0; j < re.length; j++){
+            double r = re[j], i = im[j];
+            final double cr = rotRe[j], ci = rotIm[j], tr = tailRe[j], ti = tailIm[j];
+            for(int t = 0; t < d; t++){
+                final double x = frame[frameSize - d + t];
+                final double r0 = r - prev[t];
+                final double nr = cr * r0 - ci * i + x * tr;
+                final double ni = ci * r0 + cr * i + x * ti;
+                r = nr;
+                i = ni;
+            }
+            re[j] = r;
+            im[j] = i;
+        }
+        sinceResync += d;
+    }
+
+    // フレームから直接計算する
+    private void resync(double[] frame){
+        for(int j = 0; j < re.length; j++){
+            double r = 0, i = 0;
+            for(int m = 0; m < frameSize; m++){
+                r += frame[m] * Math.cos(omega[j] * m);
+                i -= frame[m] * Math.sin(omega[j] * m);
+            }
+            re[j] = r;
+            im[j] = i;
+        }
+        sinceResync = 0;
+    }
+
+    // 窓関数が a - b cos(2π m / L) (L = N または N - 1) なら {a, b, L}、そうでなければ null
+    private static double[] cosineWindow(double[] w){
+        final int n = w.length;
+        if(n < 4) return null;
+        for(int L : new int[]{n, n - 1}){
+            // m = 0 と m = L/2 (cos = 1, -1 に近い点) から a, b を求め、全体で確かめる
+            final int h = L / 2;
+            final double c = Math.cos(2.0 * Math.PI * h / L);
+            final double b = (w[h] - w[0]) / (1.0 - c);
+            final double a = w[0] + b;
+            double max = 0, err = 0;
+            for(int m = 0; m < n; m++){
+                max = Math.max(max, Math.abs(w[m]));
+                err = Math.max(err, Math.abs(a - b * Math.cos(2.0 * Math.PI * m / L) - w[m]));
+            }
+            if(max > 0 && err <= 1e-9 * max) return new double[]{a, b, L};
+        }
+        return null;
+    }
+}
@@ -0,0 +1,153 @@
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import javax.sound.sampled.AudioInputStream;
+import javax.sound.sampled.AudioSystem;
+import javax.sound.sampled.UnsupportedAudioFileException;
+
+// カラオケの採点
+// 伴奏 (お手本) の WAV のメロディ (SHS によるノートナンバー) を読み込み時に一度だけ求め、
+// フレームごとの float の配列として持っておく。歌っている間は、マイクの各フレームの音高を
+// その時刻の前後 window 秒のお手本と比べるだけなので、伴奏を解析し直す必要はない。
+//
+// 音高はオクターブの違いを許して比べる (半音単位の差を -6 〜 +6 に折り返す)。
+// 差が tolerance 半音以内なら、差に応じて 1 (ぴったり) 〜 0 (tolerance) の点をつける。
+// お手本かマイクのどちらかが無声 (音高なし) のフレームは採点しない。
+//
+// judge は 1 つのスレッド (データ処理スレッド) からだけ呼ぶこと。
+public final class KaraokeScorer {
+
+    // メロディの候補 (Task2_KaraokeSystem の calcNoteNumberFromMic と同じ 36 〜 72)
+    private static final int LOWEST_NOTE = 36;
+    private static final int CANDIDATES = 360;
+    // SHS の値がこれより小さいフレームは無声とする
+    private static final double VOICING = 0.02;
+
+    // 照合する時刻の幅の既定値 (秒, 前後それぞれ)
+    public static final double DEFAULT_WINDOW = 0.2;
+    // 許容する音高の差の既定値 (半音)
+    public static final double DEFAULT_TOLERANCE = 1.0;
+
+    private final float[] reference;    // フレーム i (時刻 i * shiftDuration 秒) のノートナンバー (無声なら NaN)
+    private final double shiftDuration;
+    private final int windowFrames;
+    private final double tolerance;
+
+    private double total = 0;
+    private int judged = 0;
+
+    // お手本の WAV を解析する (フレーム長 frameDuration 秒, シフト長 shiftDuration 秒)
+    public static KaraokeScorer analyze(File wavFile, double frameDuration, double shiftDuration)
+        throws IOException,
+               UnsupportedAudioFileException {
+        final AudioInputStream stream = AudioSystem.getAudioInputStream(wavFile);
+        final double sampleRate = stream.getFormat().getSampleRate();
+        final FeaturePipeline pipeline = new FeaturePipeline(sampleRate, frameDuration, shiftDuration);
+        // 呼び出し元のスレッドだけで解析する (優先度の低いスレッドから呼べば再生・録音の解析を邪魔しない)
+        pipeline.setParallelism(1);
+        final SHSEngine shs = engine(pipeline.getNyquist(), pipeline.getFFTSize2());
+        final double[] score = new double[shs.candidates()];
+
+        /* フレームごとのノートナンバー (全体の長さが分かれば一度に確保する) */
+        final long length = stream.getFrameLength();
+        final float[][] notes = {
+            new float[length > 0 ? (int)(length / pipeline.getShiftSize()) : 1024]
+        };
+        pipeline.addFrameListener((specAbs, i) -> {
+            if(i >= notes[0].length) notes[0] = Arrays.copyOf(notes[0], Math.max(i + 1, notes[0].length * 2));
+            notes[0][i] = note(shs, specAbs, score);
+        });
+
+        final int frames;
+        try(WaveformStream in = new WaveformStream(stream, pipeline.getFrameSize(),
+                                                   pipeline.getShiftSize())){
+            frames = pipeline.process(in);
+        }
+        return new KaraokeScorer(Arrays.copyOf(notes[0], frames), shiftDuration,
+                                 DEFAULT_WINDOW, DEFAULT_TOLERANCE);
+    }
+
+    // お手本の音高を求める SHS の表 (fftSize2 = fftSize/2 + 1 本の振幅スペクトル用)
+    public static SHSEngine engine(double nyquist, int fftSize2){
+        return SHSEngine.of(nyquist, fftSize2, fftSize2, LOWEST_NOTE, CANDIDATES);
+    }
+
+    // 振幅スペクトル mag のフレームのノートナンバー (無声なら NaN)
+    // shs は engine で作ったもの、score は作業領域 (length = shs.candidates())
+    // FeatureCache もこれを使うので、--cache の有無でお手本は変わらない
+    public static float note(SHSEngine shs, double[] mag, double[] score){
+        shs.scores(mag, score);
+        int argmax = 0;
+        for(int j = 1; j < score.length; j++){
+            if(score[j] > score[argmax]) argmax = j;
+        }
+        return score[argmax] < VOICING ? Float.NaN : (float)shs.note(argmax);
+    }
+
+    // reference[i] : 時刻 i * shiftDuration 秒のノートナンバー (無声なら NaN)
+    public KaraokeScorer(float[] reference, double shiftDuration, double window, double tolerance){
+        if(shiftDuration <= 0 || window < 0 || tolerance <= 0)
+            throw new IllegalArgumentException(
+                "invalid parameters: shiftDuration = " + shiftDuration +
+                ", window = " + window + ", tolerance = " + tolerance
+            );
+        this.reference = reference;
+        this.shiftDuration = shiftDuration;
+        this.windowFrames = (int)Math.ceil(window / shiftDuration);
+        this.tolerance = tolerance;
+    }
+
+    // 時刻 time (秒) に歌った音高 micNote (ノートナンバー, 無声なら NaN) を採点する
+    // 戻り値はこのフレームの点 (0 〜 1)、採点しなかったときは NaN
+    public double judge(double time, double micNote){
+        if(Double.isNaN(micNote)) return Double.NaN;
+        final int center = (int)Math.round(time / shiftDuration);
+        final int from = Math.max(0, center - windowFrames);
+        final int to = Math.min(reference.length - 1, center + windowFrames);
+
+        // 前後 window 秒のお手本のうち、一番近い音高との差
+        double best = Double.NaN;
+        for(int i = from; i <= to; i++){
+            if(Float.isNaN(reference[i])) continue;
+            final double d = octaveDistance(micNote, reference[i]);
+            if(Double.isNaN(best) || d < best) best = d;
+        }
+        if(Double.isNaN(best)) return Double.NaN;
+
+        final double point = Math.max(0.0, 1.0 - best / tolerance);
+        total += point;
+        judged++;
+        return point;
+    }
+
+    // オクターブの違いを無視した音高の差 (半音, 0 〜 6)
+    public static double octaveDistance(double a, double b){
+        final double d = (a - b) % 12.0;
+        return Math.abs(d > 6.0 ? d - 12.0 : d < -6.0 ? d + 12.0 : d);
+    }
+
+    // 周波数 (Hz) をノートナンバーにする (0 以下なら NaN)
+    public static double noteNumber(double freq){
+        return freq > 0 ? 69.0 + 12.0 * Math.log(freq / 440.0) / Math.log(2.0) : Double.NaN;
+    }
+
+    // これまでの得点 (100 点満点, 採点したフレームの平均)
+    public double getScore(){ return judged > 0 ? 100.0 * total / judged : 0.0; }
+
+    // 採点したフレーム数
+    public int getJudged(){ return judged; }
+
+    // 時刻 time (秒) のお手本のノートナンバー (範囲外・無声なら NaN)
+    public double referenceAt(double time){
+        final int i = (int)Math.round(time / shiftDuration);
+        return i >= 0 && i < reference.length ? reference[i] : Double.NaN;
+    }
+
+    // お手本のフレーム数
+    public int length(){ return reference.length; }
+
+    // お手本の長さ (秒)
+    public double getDuration(){ return reference.length * shiftDuration; }
+
+    public double getShiftDuration(){ return shiftDuration; }
+}
@@ -0,0 +1,80 @@
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+
+// 遅延 (ナノ秒) の分布を数えるヒストグラム (HdrHistogram と同じ考え方の簡易版)
+// 値を 2 のべき乗ごとの区間に分け、各区間をさらに SUB_BUCKETS / 2 個に等分して数える。
+// 相対誤差は 1 / (SUB_BUCKETS / 2) 未満 (1.6 %) で、1 ns から数百年までを 3712 個の数で表せる。
+// 記録は配列の 1 つの要素を増やすだけ (O(1), メモリ確保なし) なので、音声・解析スレッドから呼んでよい。
+//
+// record と読み出しはどのスレッドから同時に行ってもよい。
+public final class LatencyHistogram {
+
+    private static final int SUB_BITS = 7;
+    private static final int SUB_BUCKETS = 1 << SUB_BITS;           // 128
+    private static final int HALF = SUB_BUCKETS >> 1;                // 64
+    private static final int BUCKETS = (63 - SUB_BITS) * HALF + SUB_BUCKETS;  // 3712
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final AtomicLong total = new AtomicLong();
+    private final AtomicLong sum = new AtomicLong();
+    private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+    // 値 nanos を記録する (負の値は 0 とする)
+    public void record(long nanos){
+        final long v = Math.max(0, nanos);
+        counts.incrementAndGet(index(v));
+        total.incrementAndGet();
+        sum.addAndGet(v);
+        max.accumulate(v);
+    }
+
+    // 値の入る区間の番号
+    // v < SUB_BUCKETS はそのまま、それ以上は上位 SUB_BITS ビットと桁数 (shift) で決める
+    private static int index(long v){
+        final int shift = Math.max(0, (63 - Long.numberOfLeadingZeros(v)) - SUB_BITS + 1);
+        return shift * HALF + (int)(v >>> shift);
+    }
+
+    // 区間 index に入る値の上限
+    private static long highest(int index){
+        if(index < SUB_BUCKETS) return index;
+        final int shift = index / HALF - 1;
+        final long sub = index - (long)shift * HALF;
+        return ((sub + 1) << shift) - 1;
+    }
+
+    // p パーセンタイル (0 〜 100) の値 (ナノ秒, 記録がなければ 0)
+    // 区間の上限を返すので、実際の値より最大 1.6 % 大きい
+    public long percentile(double p){
+        final long n = total.get();
+        if(n == 0) return 0;
+        final long target = Math.max(1, (long)Math.ceil(p / 100.0 * n));
+        long cumulative = 0;
+        for(int i = 0; i < BUCKETS; i++){
+            cumulative += counts.get(i);
+            if(cumulative >= target) return Math.min(highest(i), getMax());
+        }
+        return getMax();
+    }
+
+    // 記録した値の数
+    public long getCount(){ return total.get(); }
+
+    // 平均 (ナノ秒)
+    public double getMean(){
+        final long n = total.get();
+        return n > 0 ? (double)sum.get() / n : 0.0;
+    }
+
+    // 最大値 (ナノ秒)
+    public long getMax(){ return max.get(); }
+
+    // 記録を消す
+    public void reset(){
+        for(int i = 0; i < BUCKETS; i++) counts.set(i, 0);
+        total.set(0);
+        sum.set(0);
+        max.reset();
+    }
+}
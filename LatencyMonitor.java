@@ -0,0 +1,102 @@
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.Executor;
+
+import javafx.animation.AnimationTimer;
+import javafx.scene.text.Text;
+
+// マイク入力から画面表示までの遅延を段階ごとに測る
+// Recorder の AudioFrameListener が呼ばれた時刻を起点 (start = System.nanoTime()) とし、
+// 各段階を終えた時刻までの遅延を LatencyHistogram に記録する。
+//   FFT    : 窓関数 + FFT (振幅スペクトル) まで
+//   PITCH  : calcFF と calcNoteNumberFromMic まで
+//   RENDER : JavaFX アプリケーションスレッドでチャートを書き換えるまで (実際の表示は次の描画)
+// データ処理スレッドの待ち行列で待った時間も含む。
+// 待ち行列から捨てられたフレームは遅延に現れないので、捨てた数を別に数えて summary に出す。
+public final class LatencyMonitor {
+
+    public enum Stage {
+        FFT("callback -> FFT"),
+        PITCH("callback -> pitch"),
+        RENDER("callback -> render");
+
+        private final String label;
+
+        Stage(String label){ this.label = label; }
+
+        public String label(){ return label; }
+    }
+
+    // オーバーレイを書き換える間隔 (ナノ秒)
+    private static final long OVERLAY_INTERVAL = 500_000_000L;
+
+    private final Map<Stage, LatencyHistogram> histograms = new EnumMap<>(Stage.class);
+    private volatile AnalysisDispatcher dispatcher = null;  // 捨てたフレームを数える (timed で登録)
+    private long current = 0;   // データ処理スレッドで解析中のフレームの起点 (そのスレッドだけが読み書きする)
+
+    public LatencyMonitor(){
+        for(Stage stage : Stage.values()){
+            histograms.put(stage, new LatencyHistogram());
+        }
+    }
+
+    // 段階 stage を終えた (起点は start = System.nanoTime())
+    public void record(Stage stage, long start){
+        histograms.get(stage).record(System.nanoTime() - start);
+    }
+
+    public LatencyHistogram get(Stage stage){ return histograms.get(stage); }
+
+    // dispatcher に解析を渡す Executor (Recorder の AudioFrameListener から execute する)
+    // execute された時刻を起点として記録し、解析の中では start() で取り出せる。
+    // dispatcher が捨てたフレームの数も summary に出す
+    public Executor timed(AnalysisDispatcher dispatcher){
+        this.dispatcher = dispatcher;
+        return task -> {
+            final long callback = System.nanoTime();
+            dispatcher.execute(() -> {
+                current = callback;
+                task.run();
+            });
+        };
+    }
+
+    // 解析中のフレームの起点 (timed の Executor が実行している解析の中から呼ぶ)
+    public long start(){ return current; }
+
+    // 段階ごとの遅延の分布 (ミリ秒)
+    public String summary(){
+        final StringBuilder sb = new StringBuilder(String.format(
+            "%-18s %8s %8s %8s %8s %8s %8s%n", "latency [ms]", "count", "p50", "p90", "p99", "p99.9", "max"
+        ));
+        for(Stage stage : Stage.values()){
+            final LatencyHistogram h = histograms.get(stage);
+            sb.append(String.format("%-18s %8d %8.2f %8.2f %8.2f %8.2f %8.2f%n",
+                                    stage.label(), h.getCount(),
+                                    h.percentile(50) / 1e6, h.percentile(90) / 1e6,
+                                    h.percentile(99) / 1e6, h.percentile(99.9) / 1e6,
+                                    h.getMax() / 1e6));
+        }
+        final AnalysisDispatcher d = dispatcher;
+        if(d != null){
+            final long submitted = d.getSubmitted();
+            sb.append(String.format("%-18s %8d of %d frames (%.1f%%)%n", "dropped",
+                                    d.getDropped(), submitted,
+                                    submitted > 0 ? 100.0 * d.getDropped() / submitted : 0.0));
+        }
+        return sb.toString();
+    }
+
+    // text に summary を表示し続けるタイマー (start() で始める)
+    public AnimationTimer overlay(Text text){
+        return new AnimationTimer() {
+            private long last = 0;
+
+            @Override public void handle(long now){
+                if(now - last < OVERLAY_INTERVAL) return;
+                last = now;
+                text.setText(summary());
+            }
+        };
+    }
+}
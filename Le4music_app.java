@@ -4,18 +4,450 @@
  * and open the template in the editor.
  */
 
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.GZIPOutputStream;
+import javax.sound.sampled.AudioInputStream;
+import javax.sound.sampled.AudioSystem;
+import javax.sound.sampled.UnsupportedAudioFileException;
+
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.DefaultParser;
+import org.apache.commons.cli.HelpFormatter;
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.ParseException;
+
+import jp.ac.kyoto_u.kuis.le4music.Le4MusicUtils;
 
 /**
+ * JavaFX を使わない一括解析
+ * WAV ファイル (ディレクトリなら中の *.wav, --list ならファイルに書かれたパス) ごとに
+ * スペクトログラム・基本周波数・クロマ・和音・メロディを求め、特徴量ファイルに書き出す。
+ * ファイルはスレッドプールで並列に処理する (プールは全ファイルで使い回す)。
+ * --channels ならチャネルの平均 (モノラル) をとらずにチャネルごとに解析し、
+ * <WAVファイル名>.ch<チャネル番号>.feat に書き出す。各チャネルは別のタスクとしてプールで並列に処理し、
+ * FFT の準備 (RealFFT, SHSEngine, ChromaExtractor) はチャネル間で共有する。
+ * 波形はメモリマップ (MappedWaveform) から担当のチャネルだけを取り出すので、
+ * メモリはチャネル数に比例する分 (1 チャネル分の波形と特徴量 × 同時に処理するチャネル数) で済む。
+ * --float なら波形 (MappedWaveform.readFloat) と振幅スペクトログラム (FeaturePipeline.processFloat)、
+ * クロマベクトルを単精度で求める (メモリは半分、値の差は FeaturePipeline を参照)。
+ * (--channels, --float は 16 bit PCM の WAV のみ、--float は --channels と併用できない)
+ *
+ * 特徴量ファイル (<WAVファイル名>.feat, gzip 圧縮, ビッグエンディアン)
+ *   int    'L' 'E' '4' 'F'
+ *   int    版 (1)
+ *   float  サンプリング周波数 (Hz)
+ *   float  フレーム長 (秒)
+ *   float  シフト長 (秒)
+ *   int    フレーム数 N
+ *   int    スペクトルの長さ M (fftSize / 2 + 1, --no-spectrogram なら 0)
+ *   short  [N][M] 対数振幅スペクトログラム (0.01 dB 単位, -∞ dB は Short.MIN_VALUE)
+ *   float  [N]    基本周波数 (Hz, 自己相関, 求まらなければ 0)
+ *   float  [N][12] クロマベクトル (-0.15 / 各音名のパワー)
+ *   byte   [N]    和音 (0 - 11 : C - B Maj, 12 - 23 : C - B Min)
+ *   float  [N]    メロディ (ノートナンバー, SHS)
  *
  * @author a0161419
  */
 public class Le4music_app {
 
+    private static final Options options = new Options();
+    private static final String helpMessage =
+            MethodHandles.lookup().lookupClass().getName() + " [OPTIONS] <WAVFILE | DIR>...";
+
+    // 特徴量ファイルの識別子と版
+    public static final int MAGIC = 0x4c453446;   // "LE4F"
+    public static final int VERSION = 1;
+
+    static{
+        // コマンドラインオプション定義
+        options.addOption("h", "help", false, "Display this help and exit");
+        options.addOption("o", "outdir", true,
+                          "Output directory (Default: same directory as each WAVFILE)");
+        options.addOption("l", "list", true,
+                          "Text file listing WAVFILEs, one per line");
+        options.addOption("j", "threads", true,
+                          "Number of files processed in parallel (Default: " +
+                          Runtime.getRuntime().availableProcessors() + ")");
+        options.addOption("f", "frame", true,
+                          "Duration of frame [seconds] (Default: " +
+                          Le4MusicUtils.frameDuration + ")");
+        options.addOption("s", "shift", true,
+                          "Duration of shift [seconds] (Default: frame/8)");
+        options.addOption("S", "no-spectrogram", false,
+                          "Do not write the spectrogram");
+        options.addOption("c", "channels", false,
+                          "Analyze each channel separately instead of the monaural downmix " +
+                          "(16 bit PCM WAV only)");
+        options.addOption("F", "float", false,
+                          "Analyze in single precision to halve the memory " +
+                          "(16 bit PCM WAV only, not with --channels)");
+    }
+
     /**
      * @param args the command line arguments
      */
-    public static void main(String[] args) {
-        // TODO code application logic here
+    public static void main(String[] args)
+        throws IOException,
+               InterruptedException,
+               ParseException {
+        /* コマンドライン引数処理 */
+        final CommandLine cmd = new DefaultParser().parse(options, args);
+        if(cmd.hasOption("help")){
+            new HelpFormatter().printHelp(helpMessage, options);
+            return;
+        }
+
+        /* 入力ファイルを集める */
+        final List<File> wavFiles = new ArrayList<>();
+        for(String path : cmd.getArgs()){
+            addWavFiles(new File(path), wavFiles);
+        }
+        if(cmd.hasOption("list")){
+            for(String line : Files.readAllLines(new File(cmd.getOptionValue("list")).toPath(),
+                                                 StandardCharsets.UTF_8)){
+                if(!line.trim().isEmpty()) addWavFiles(new File(line.trim()), wavFiles);
+            }
+        }
+        if(wavFiles.isEmpty()){
+            System.out.println("WAVFILE is not given.");
+            new HelpFormatter().printHelp(helpMessage, options);
+            return;
+        }
+
+        final double frameDuration =
+                Optional.ofNullable(cmd.getOptionValue("frame"))
+                        .map(Double::parseDouble)
+                        .orElse(Le4MusicUtils.frameDuration);
+        final double shiftDuration =
+                Optional.ofNullable(cmd.getOptionValue("shift"))
+                        .map(Double::parseDouble)
+                        .orElse(frameDuration / 8);
+        final int threads =
+                Optional.ofNullable(cmd.getOptionValue("threads"))
+                        .map(Integer::parseInt)
+                        .orElse(Runtime.getRuntime().availableProcessors());
+        if(threads < 1)
+            throw new IllegalArgumentException("threads must be positive: " + threads);
+        final boolean spectrogram = !cmd.hasOption("no-spectrogram");
+        final File outDir = Optional.ofNullable(cmd.getOptionValue("outdir"))
+                                    .map(File::new)
+                                    .orElse(null);
+        if(outDir != null && !outDir.isDirectory() && !outDir.mkdirs())
+            throw new IOException("cannot create output directory: " + outDir);
+
+        final boolean perChannel = cmd.hasOption("channels");
+        final boolean single = cmd.hasOption("float");
+        if(perChannel && single)
+            throw new IllegalArgumentException("--float cannot be combined with --channels");
+
+        /* ファイル (--channels ならファイルのチャネル) ごとに並列に解析する (1 つの中は逐次処理) */
+        final long start = System.nanoTime();
+        final ExecutorService pool = Executors.newFixedThreadPool(threads);
+        final List<String> labels = new ArrayList<>();
+        final List<Future<Integer>> results = new ArrayList<>();
+        for(File wavFile : wavFiles){
+            final File dir = outDir != null ? outDir : wavFile.getAbsoluteFile().getParentFile();
+            if(!perChannel){
+                final File featFile = new File(dir, wavFile.getName() + ".feat");
+                labels.add(wavFile.toString());
+                results.add(pool.submit(() -> single
+                        ? analyzeFloat(wavFile, featFile, frameDuration, shiftDuration, spectrogram)
+                        : analyze(wavFile, featFile, frameDuration, shiftDuration, spectrogram)));
+                continue;
+            }
+            final int channels;
+            try(MappedWaveform wav = MappedWaveform.open(wavFile)){
+                channels = wav.getChannels();
+            } catch(IOException | UnsupportedAudioFileException e){
+                labels.add(wavFile.toString());
+                final CompletableFuture<Integer> f = new CompletableFuture<>();
+                f.completeExceptionally(e);
+                results.add(f);
+                continue;
+            }
+            for(int c = 0; c < channels; c++){
+                final int channel = c;
+                final File featFile = new File(dir, wavFile.getName() + ".ch" + c + ".feat");
+                labels.add(wavFile + " [ch" + c + "]");
+                results.add(pool.submit(() -> analyzeChannel(wavFile, channel, featFile,
+                                                             frameDuration, shiftDuration, spectrogram)));
+            }
+        }
+        pool.shutdown();
+
+        int failed = 0;
+        for(int i = 0; i < results.size(); i++){
+            try {
+                System.out.println(labels.get(i) + ": " + results.get(i).get() + " frames");
+            } catch(ExecutionException e){
+                failed++;
+                System.err.println(labels.get(i) + ": " + e.getCause());
+            }
+        }
+        System.out.printf("%d %s (%d failed), %.1f sec%n",
+                          results.size(), perChannel ? "channels" : "files",
+                          failed, (System.nanoTime() - start) / 1e9);
+        if(failed > 0) System.exit(1);
+    }
+
+    // file がディレクトリなら中の *.wav を、そうでなければ file を加える
+    private static void addWavFiles(File file, List<File> wavFiles){
+        if(file.isDirectory()){
+            final File[] children = file.listFiles((dir, name) -> name.toLowerCase().endsWith(".wav"));
+            if(children == null) return;
+            Arrays.sort(children);
+            wavFiles.addAll(Arrays.asList(children));
+        }else{
+            wavFiles.add(file);
+        }
+    }
+
+    // 1 ファイルを解析して特徴量ファイルに書き出す (戻り値はフレーム数)
+    // spectrogram が false ならスペクトログラムは書かない
+    public static int analyze(File wavFile, File featFile,
+                              double frameDuration, double shiftDuration,
+                              boolean spectrogram)
+        throws IOException,
+               UnsupportedAudioFileException {
+        /* WAVファイル読み込み */
+        final AudioInputStream stream = AudioSystem.getAudioInputStream(wavFile);
+        final double[] waveform = Le4MusicUtils.readWaveformMonaural(stream);
+        final double sampleRate = stream.getFormat().getSampleRate();
+        stream.close();
+        return analyze(waveform, sampleRate, featFile, frameDuration, shiftDuration, spectrogram);
+    }
+
+    // 16 bit PCM の WAV ファイルのチャネル channel だけを解析して特徴量ファイルに書き出す (戻り値はフレーム数)
+    // ほかのチャネルは読まない (メモリマップから channel のサンプルだけを変換する)
+    public static int analyzeChannel(File wavFile, int channel, File featFile,
+                                     double frameDuration, double shiftDuration,
+                                     boolean spectrogram)
+        throws IOException,
+               UnsupportedAudioFileException {
+        final double[] waveform;
+        final double sampleRate;
+        try(MappedWaveform wav = MappedWaveform.open(wavFile)){
+            if(wav.getLength() > Integer.MAX_VALUE)
+                throw new IOException("too long to analyze at once: " + wav.getLength() + " samples");
+            waveform = wav.readChannel(channel, 0, (int)wav.getLength());
+            sampleRate = wav.getSampleRate();
+        }
+        return analyze(waveform, sampleRate, featFile, frameDuration, shiftDuration, spectrogram);
+    }
+
+    // 波形 waveform を解析して特徴量ファイルに書き出す (戻り値はフレーム数)
+    public static int analyze(double[] waveform, double sampleRate, File featFile,
+                              double frameDuration, double shiftDuration,
+                              boolean spectrogram)
+        throws IOException {
+        /* 短時間フーリエ変換 (スレッドはファイル・チャネル単位で使うので、この中は逐次処理) */
+        final FeaturePipeline pipeline = new FeaturePipeline(sampleRate, frameDuration, shiftDuration);
+        pipeline.setParallelism(1);
+        final double[][] specAbs = pipeline.process(waveform);
+        final int frames = specAbs.length;
+        final int frameSize = pipeline.getFrameSize();
+        final int shiftSize = pipeline.getShiftSize();
+        final int fftSize2 = pipeline.getFFTSize2();
+
+        /* 基本周波数 (自己相関、振幅 0.1 未満は 0 とみなす) */
+        final float[] fundFreq = new float[frames];
+        final PitchTracker tracker = new PitchTracker(frameSize - 1, 10, frameSize - 2, 0.1);
+        for(int i = 0; i < frames; i++){
+            final int t = tracker.bestLag(waveform, i * shiftSize, waveform.length);
+            if(t > 0) fundFreq[i] = (float)(sampleRate / t);
+        }
+
+        /* クロマベクトルと和音 (Task1_VisualizeWav と同じテンプレート) */
+        final ChromaExtractor chroma = ChromaExtractor.of(pipeline.getNyquist(), fftSize2);
+        final double[] chromaVec = new double[17];
+        final float[][] chroma12 = new float[frames][12];
+        final byte[] chord = new byte[frames];
+        for(int i = 0; i < frames; i++){
+            chroma.chromaVector(specAbs[i], chromaVec);
+            for(int j = 0; j < 12; j++) chroma12[i][j] = (float)chromaVec[j];
+            chord[i] = (byte)chord(chromaVec);
+        }
+
+        /* メロディ (SHS, ノートナンバー 36 〜 72 を 0.1 刻みで候補とする) */
+        final int N = 36;
+        final SHSEngine shs = SHSEngine.of(pipeline.getNyquist(), fftSize2, fftSize2, N, 360);
+        final double[] score = new double[360];
+        final float[] melody = new float[frames];
+        for(int i = 0; i < frames; i++){
+            shs.scores(specAbs[i], score);
+            melody[i] = (float)(N + argmax(score) / 10.0);
+        }
+
+        /* 書き出し */
+        try(DataOutputStream out = create(featFile)){
+            writeHeader(out, sampleRate, frameDuration, shiftDuration, frames, spectrogram ? fftSize2 : 0);
+            if(spectrogram){
+                for(double[] sp : specAbs){
+                    for(double c : sp) writeDecibel(out, c);
+                }
+            }
+            writeFeatures(out, fundFreq, chroma12, chord, melody);
+        }
+        return frames;
+    }
+
+    // 16 bit PCM の WAV ファイルを単精度で解析して特徴量ファイルに書き出す (戻り値はフレーム数)
+    // 波形・振幅スペクトログラム・クロマベクトルは float で持つ (メモリは analyze の半分)。
+    // 基本周波数と SHS は 1 フレーム分ずつ double の作業領域に写して求める。
+    public static int analyzeFloat(File wavFile, File featFile,
+                                   double frameDuration, double shiftDuration,
+                                   boolean spectrogram)
+        throws IOException,
+               UnsupportedAudioFileException {
+        final float[] waveform;
+        final double sampleRate;
+        try(MappedWaveform wav = MappedWaveform.open(wavFile)){
+            if(wav.getLength() > Integer.MAX_VALUE)
+                throw new IOException("too long to analyze at once: " + wav.getLength() + " samples");
+            waveform = wav.readFloat(0, (int)wav.getLength());
+            sampleRate = wav.getSampleRate();
+        }
+
+        /* 短時間フーリエ変換 (単精度, この中は逐次処理) */
+        final FeaturePipeline pipeline = new FeaturePipeline(sampleRate, frameDuration, shiftDuration);
+        pipeline.setParallelism(1);
+        final float[][] specAbs = pipeline.processFloat(waveform);
+        final int frames = specAbs.length;
+        final int frameSize = pipeline.getFrameSize();
+        final int shiftSize = pipeline.getShiftSize();
+        final int fftSize2 = pipeline.getFFTSize2();
+
+        /* 基本周波数 (analyze と同じ、自己相関が見る 2 フレーム分だけを double に写す) */
+        final float[] fundFreq = new float[frames];
+        final PitchTracker tracker = new PitchTracker(frameSize - 1, 10, frameSize - 2, 0.1);
+        final double[] span = new double[2 * frameSize];
+        for(int i = 0; i < frames; i++){
+            final int from = i * shiftSize;
+            final int n = Math.min(span.length, waveform.length - from);
+            for(int j = 0; j < n; j++) span[j] = waveform[from + j];
+            final int t = tracker.bestLag(span, 0, n);
+            if(t > 0) fundFreq[i] = (float)(sampleRate / t);
+        }
+
+        /* クロマベクトル (単精度) と和音 */
+        final ChromaExtractor chroma = ChromaExtractor.of(pipeline.getNyquist(), fftSize2);
+        final float[] chromaVec = new float[17];
+        final double[] like = new double[12];
+        final float[][] chroma12 = new float[frames][12];
+        final byte[] chord = new byte[frames];
+        for(int i = 0; i < frames; i++){
+            chroma.chromaVector(specAbs[i], chromaVec);
+            for(int j = 0; j < 12; j++) like[j] = chroma12[i][j] = chromaVec[j];
+            chord[i] = (byte)chord(like);
+        }
+
+        /* メロディ (analyze と同じ SHS, 1 フレーム分ずつ double に写す) */
+        final int N = 36;
+        final SHSEngine shs = SHSEngine.of(pipeline.getNyquist(), fftSize2, fftSize2, N, 360);
+        final double[] row = new double[fftSize2];
+        final double[] score = new double[360];
+        final float[] melody = new float[frames];
+        for(int i = 0; i < frames; i++){
+            for(int j = 0; j < fftSize2; j++) row[j] = specAbs[i][j];
+            shs.scores(row, score);
+            melody[i] = (float)(N + argmax(score) / 10.0);
+        }
+
+        /* 書き出し */
+        try(DataOutputStream out = create(featFile)){
+            writeHeader(out, sampleRate, frameDuration, shiftDuration, frames, spectrogram ? fftSize2 : 0);
+            if(spectrogram){
+                for(float[] sp : specAbs){
+                    for(float c : sp) writeDecibel(out, c);
+                }
+            }
+            writeFeatures(out, fundFreq, chroma12, chord, melody);
+        }
+        return frames;
+    }
+
+    // 特徴量ファイルを作る (gzip 圧縮)
+    private static DataOutputStream create(File featFile) throws IOException {
+        return new DataOutputStream(new BufferedOutputStream(
+                new GZIPOutputStream(new FileOutputStream(featFile), 1 << 16)));
+    }
+
+    // 特徴量ファイルのヘッダ (識別子 〜 スペクトルの長さ)
+    private static void writeHeader(DataOutputStream out, double sampleRate,
+                                    double frameDuration, double shiftDuration,
+                                    int frames, int specLength)
+        throws IOException {
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeFloat((float)sampleRate);
+        out.writeFloat((float)frameDuration);
+        out.writeFloat((float)shiftDuration);
+        out.writeInt(frames);
+        out.writeInt(specLength);
+    }
+
+    // 振幅 c を 0.01 dB 単位の short で書く
+    private static void writeDecibel(DataOutputStream out, double c) throws IOException {
+        final double db = Math.round(20.0 * Math.log10(c) * 100.0);
+        out.writeShort((short)Math.max(Short.MIN_VALUE, Math.min(Short.MAX_VALUE, db)));
+    }
+
+    // スペクトログラムより後の特徴量 (基本周波数・クロマ・和音・メロディ)
+    private static void writeFeatures(DataOutputStream out, float[] fundFreq, float[][] chroma12,
+                                      byte[] chord, float[] melody)
+        throws IOException {
+        for(float f : fundFreq) out.writeFloat(f);
+        for(float[] c : chroma12){
+            for(float v : c) out.writeFloat(v);
+        }
+        out.write(chord);
+        for(float m : melody) out.writeFloat(m);
+    }
+
+    // 和音らしさが最大の和音 (0 - 11 : Maj, 12 - 23 : Min)
+    public static int chord(double[] chromaVec){
+        final double a_root = 1.0, a_3rd = 0.5, a_5th = 0.8;
+        final double[] like_chord = new double[24];
+        for(int j = 0; j < 24; j++){
+            if(j < 12){
+                like_chord[j] = a_root * chromaVec[j]
+                              + a_3rd  * chromaVec[(j + 4) % 12]
+                              + a_5th  * chromaVec[(j + 7) % 12];
+            }else{
+                like_chord[j] = a_root * chromaVec[j % 12]
+                              + a_3rd  * chromaVec[(j + 3) % 12]
+                              + a_5th  * chromaVec[(j + 7) % 12];
+            }
+        }
+        return argmax(like_chord);
+    }
+
+    // 最大値の添字 (最初に現れたもの)
+    private static int argmax(double[] arr){
+        double max = arr[0];
+        int argmax = 0;
+        for(int i = 0; i < arr.length - 1; i++){
+            if(max < arr[i + 1]){
+                max = arr[i + 1];
+                argmax = i + 1;
+            }
+        }
+        return argmax;
     }
-    
 }
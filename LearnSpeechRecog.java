@@ -1,7 +1,6 @@
 import java.io.BufferedWriter;
 import java.io.File;
 import java.io.FileWriter;
-import java.util.Arrays;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 import java.util.stream.IntStream;
@@ -19,7 +18,6 @@ import javafx.scene.chart.NumberAxis;
 import javafx.collections.ObservableList;
 import javafx.collections.FXCollections;
 
-import org.apache.commons.math3.complex.Complex;
 import org.apache.commons.math3.util.MathArrays;
 
 import jp.ac.kyoto_u.kuis.le4music.Le4MusicUtils;
@@ -70,57 +68,16 @@ public final class LearnSpeechRecog extends Application {
             }
         }
  
-        /* fftSize = 2^p >= wave_vowel[0].length を満たす fftSize を求める
-         * 2^p はシフト演算で求める */
-        final int fftSize = 1 << Le4MusicUtils.nextPow2(wave_vowel[3].length);
-        final int fftSize2 = (fftSize >> 1) + 1;
-        /* 信号の長さを fftSize に伸ばし、長さが足りない部分は0で埋める。
+        /* 母音「え」の区間の対数振幅スペクトルとスペクトル包絡 (ケプストラムの 1〜13 次の係数を逆フーリエ変換)
          * 振幅を信号長で正規化する。 */
-        final double[] src =
-                Arrays.stream(Arrays.copyOf(wave_vowel[3], fftSize))
-                      .map(w -> w / wave_vowel[3].length)
-                      .toArray();
-        /* 高速フーリエ変換を行う */
-        final Complex[] spectrum = Le4MusicUtils.rfft(src);
-        
-        /* 対数振幅スペクトルを求める */
-        final double[] specLog =
-                Arrays.stream(spectrum)
-                      .mapToDouble(c -> 20.0 * Math.log10(c.abs()))
-                      .toArray();
-        
-        /* 対数振幅スペクトルをフーリエ変換 */
-        final int fftSize3 = 1 << Le4MusicUtils.nextPow2(specLog.length);
-        final int fftSize4 = (fftSize3 >> 1) + 1;
-        final double[] src2 =
-                Arrays.stream(Arrays.copyOf(specLog, fftSize3))
-                      .map(w -> w)
-                      .toArray();
-        final Complex[] cepstrum = Le4MusicUtils.rfft(src2);
-        final double[] cepsAbs = Arrays.stream(cepstrum)
-                         .mapToDouble(c -> Math.log10(c.abs()))
-                         .toArray();
-        
-        /* 1〜13次のケプストラム係数を抽出 */
-        for(int i = 0; i < cepstrum.length; i++){
-            if(i >= 13) cepstrum[i] = Complex.ZERO;
-        }        
-        
-        /* 取り出した成分を逆フーリエ変換 */
-        final int fftSize5 = 1 << Le4MusicUtils.nextPow2(cepstrum.length);
-        final int fftSize6 = (fftSize5 >> 1) + 1;
-        
-        final Complex[] ceps_filled = new Complex[fftSize6];
-        for(int i = 0; i < ceps_filled.length; i++){
-            if(i < cepstrum.length) ceps_filled[i] = cepstrum[i];
-            else ceps_filled[i] = Complex.ZERO;
-        }
-        
-        final Complex[] src3 =
-                Arrays.stream(ceps_filled)
-                      .map(w -> w)
-                      .<Complex>toArray(i -> new Complex[i]);
-        final double[] specEnv = Le4MusicUtils.irfft(src3);
+        final CepstrumExtractor extractor = new CepstrumExtractor(wave_vowel[3].length);
+        final int fftSize = extractor.getFFTSize();
+        final int fftSize2 = extractor.spectrumLength();
+        final double[] specLog = new double[fftSize2];
+        final double[] specEnv = new double[fftSize2];
+        extractor.analyze(wave_vowel[3], 0);
+        extractor.specLog(specLog);
+        extractor.envelope(13, specEnv);
         
         /* 対数尤度を最大化するパラメータを求める */
         // D: ケプストラムの次元数 = 13
@@ -132,8 +89,8 @@ public final class LearnSpeechRecog extends Application {
                     .mapToObj(i -> new XYChart.Data<Number, Number>(i * sampleRate / fftSize, specLog[i]))
                     .collect(Collectors.toCollection(FXCollections::observableArrayList));
         final ObservableList<XYChart.Data<Number, Number>> data2 =
-                IntStream.range(0, fftSize6)
-                    .mapToObj(i -> new XYChart.Data<Number, Number>(i * sampleRate / fftSize5, specEnv[i]))
+                IntStream.range(0, fftSize2)
+                    .mapToObj(i -> new XYChart.Data<Number, Number>(i * sampleRate / fftSize, specEnv[i]))
                     .collect(Collectors.toCollection(FXCollections::observableArrayList));
         
         /* データ系列に名前をつける */
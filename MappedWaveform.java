@@ -0,0 +1,200 @@
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import javax.sound.sampled.UnsupportedAudioFileException;
+
+// 16 bit PCM の WAV ファイルをメモリマップして、任意の区間の波形を取り出す
+// RIFF ヘッダは開くときに一度だけ読み、data チャンクを FileChannel.map で読み出し専用にマップする。
+// 区間を指定されたときに、その区間のサンプルだけを double (-1 〜 1) に変換する。
+// 長い録音の一部 (ある時刻の和音、ある区間のスペクトログラムなど) を見るときに、
+// ファイル全体を読み込まずに済む。
+//
+// 多チャネルの音声は read ではチャネルの平均をとってモノラルにする (WaveformStream と同じ)。
+// readChannel ではチャネルを 1 つずつ取り出す。
+// 読み出しは複数スレッドから同時に行ってよい。
+public final class MappedWaveform implements Closeable {
+
+    // 1 つのマップの最大バイト数 (MappedByteBuffer は 2GB 未満なので分割してマップする)
+    private static final long SEGMENT_BYTES = 1L << 30;
+
+    private final FileChannel channel;
+    private final MappedByteBuffer[] segments;
+    private final long segmentSamples;  // 1 つのマップに入るサンプル数 (チャネルをまとめて 1 と数える)
+    private final double sampleRate;
+    private final int channels;
+    private final int blockAlign;       // 1 サンプル (全チャネル) のバイト数
+    private final long length;          // サンプル数
+
+    // WAV ファイルを開く
+    public static MappedWaveform open(File wavFile)
+        throws IOException,
+               UnsupportedAudioFileException {
+        final FileChannel channel = FileChannel.open(wavFile.toPath(), StandardOpenOption.READ);
+        try {
+            return new MappedWaveform(channel);
+        } catch(IOException | UnsupportedAudioFileException | RuntimeException e){
+            channel.close();
+            throw e;
+        }
+    }
+
+    private MappedWaveform(FileChannel channel)
+        throws IOException,
+               UnsupportedAudioFileException {
+        this.channel = channel;
+
+        /* RIFF ヘッダ */
+        final ByteBuffer header = read(channel, 0, 12);
+        if(header.getInt(0) != 0x46464952 /* "RIFF" */ || header.getInt(8) != 0x45564157 /* "WAVE" */)
+            throw new UnsupportedAudioFileException("not a RIFF/WAVE file");
+
+        /* fmt チャンクと data チャンクを探す */
+        int formatTag = -1, channels = 0, bits = 0, blockAlign = 0;
+        double sampleRate = 0;
+        long dataOffset = -1, dataBytes = 0;
+        long pos = 12;
+        while(pos + 8 <= channel.size()){
+            final ByteBuffer chunk = read(channel, pos, 8);
+            final int id = chunk.getInt(0);
+            final long size = chunk.getInt(4) & 0xffffffffL;
+            if(id == 0x20746d66 /* "fmt " */){
+                final ByteBuffer fmt = read(channel, pos + 8, (int)Math.min(size, 40));
+                formatTag = fmt.getShort(0) & 0xffff;
+                channels = fmt.getShort(2) & 0xffff;
+                sampleRate = fmt.getInt(4) & 0xffffffffL;
+                blockAlign = fmt.getShort(12) & 0xffff;
+                bits = fmt.getShort(14) & 0xffff;
+                // WAVE_FORMAT_EXTENSIBLE はサブフォーマットの先頭 2 バイトが形式
+                if(formatTag == 0xfffe && size >= 26) formatTag = fmt.getShort(24) & 0xffff;
+            }else if(id == 0x61746164 /* "data" */){
+                dataOffset = pos + 8;
+                dataBytes = Math.min(size, channel.size() - dataOffset);
+                break;
+            }
+            pos += 8 + size + (size & 1);   // チャンクは偶数バイトに揃えられている
+        }
+        if(formatTag != 1 || bits != 16)
+            throw new UnsupportedAudioFileException(
+                "only 16 bit linear PCM is supported: format = " + formatTag + ", bits = " + bits
+            );
+        if(dataOffset < 0 || channels < 1 || blockAlign != 2 * channels)
+            throw new UnsupportedAudioFileException("broken WAV header");
+
+        this.sampleRate = sampleRate;
+        this.channels = channels;
+        this.blockAlign = blockAlign;
+        this.length = dataBytes / blockAlign;
+
+        /* data チャンクをマップする (サンプルの途中で切れないように分割する) */
+        this.segmentSamples = SEGMENT_BYTES / blockAlign;
+        final int count = (int)Math.max(1, (length + segmentSamples - 1) / segmentSamples);
+        this.segments = new MappedByteBuffer[count];
+        for(int s = 0; s < count; s++){
+            final long from = s * segmentSamples * blockAlign;
+            final long bytes = Math.min(segmentSamples * blockAlign, length * blockAlign - from);
+            segments[s] = channel.map(FileChannel.MapMode.READ_ONLY, dataOffset + from, Math.max(0, bytes));
+            segments[s].order(ByteOrder.LITTLE_ENDIAN);
+        }
+    }
+
+    private static ByteBuffer read(FileChannel channel, long pos, int bytes) throws IOException {
+        final ByteBuffer buf = ByteBuffer.allocate(bytes).order(ByteOrder.LITTLE_ENDIAN);
+        while(buf.hasRemaining()){
+            if(channel.read(buf, pos + buf.position()) < 0)
+                throw new IOException("unexpected end of file");
+        }
+        return buf;
+    }
+
+    // サンプル from から length サンプルを取り出す (ファイルの範囲外は 0)
+    public double[] read(long from, int length){
+        final double[] dst = new double[length];
+        read(from, dst, 0, length);
+        return dst;
+    }
+
+    // サンプル from から length サンプルを dst[off ..) に書き込む (ファイルの範囲外は 0)
+    public void read(long from, double[] dst, int off, int length){
+        final long begin = Math.max(0, from);
+        final long end = Math.min(this.length, from + length);
+        Arrays.fill(dst, off, off + (int)Math.max(0, Math.min(length, begin - from)), 0.0);
+        for(long i = begin; i < end; i++){
+            final MappedByteBuffer seg = segments[(int)(i / segmentSamples)];
+            final int p = (int)(i % segmentSamples) * blockAlign;
+            double sum = 0;
+            for(int c = 0; c < channels; c++){
+                sum += seg.getShort(p + 2 * c) / 32768.0;
+            }
+            dst[off + (int)(i - from)] = sum / channels;
+        }
+        Arrays.fill(dst, off + (int)Math.max(0, Math.min(length, end - from)), off + length, 0.0);
+    }
+
+    // サンプル from から length サンプルを単精度で取り出す (ファイルの範囲外は 0)
+    // 16 bit の値は float で誤差なく表せるので、平均をとらない 1 チャネルの音声なら read と同じ値
+    public float[] readFloat(long from, int length){
+        final float[] dst = new float[length];
+        final long begin = Math.max(0, from);
+        final long end = Math.min(this.length, from + length);
+        for(long i = begin; i < end; i++){
+            final MappedByteBuffer seg = segments[(int)(i / segmentSamples)];
+            final int p = (int)(i % segmentSamples) * blockAlign;
+            float sum = 0;
+            for(int c = 0; c < channels; c++){
+                sum += seg.getShort(p + 2 * c) / 32768f;
+            }
+            dst[(int)(i - from)] = sum / channels;
+        }
+        return dst;
+    }
+
+    // チャネル channel のサンプル from から length サンプルを取り出す (ファイルの範囲外は 0)
+    // 平均をとらずにチャネルごとに解析するときに使う (ほかのチャネルの分は変換しない)
+    public double[] readChannel(int channel, long from, int length){
+        final double[] dst = new double[length];
+        readChannel(channel, from, dst, 0, length);
+        return dst;
+    }
+
+    // チャネル channel のサンプル from から length サンプルを dst[off ..) に書き込む (ファイルの範囲外は 0)
+    public void readChannel(int channel, long from, double[] dst, int off, int length){
+        if(channel < 0 || channel >= channels)
+            throw new IllegalArgumentException(
+                "channel must be in [0, " + channels + "): " + channel
+            );
+        final long begin = Math.max(0, from);
+        final long end = Math.min(this.length, from + length);
+        Arrays.fill(dst, off, off + (int)Math.max(0, Math.min(length, begin - from)), 0.0);
+        for(long i = begin; i < end; i++){
+            final MappedByteBuffer seg = segments[(int)(i / segmentSamples)];
+            final int p = (int)(i % segmentSamples) * blockAlign + 2 * channel;
+            dst[off + (int)(i - from)] = seg.getShort(p) / 32768.0;
+        }
+        Arrays.fill(dst, off + (int)Math.max(0, Math.min(length, end - from)), off + length, 0.0);
+    }
+
+    // 時刻 start (秒) から duration 秒の区間を取り出す
+    public double[] readSeconds(double start, double duration){
+        return read(Math.round(start * sampleRate), (int)Math.round(duration * sampleRate));
+    }
+
+    public double getSampleRate(){ return sampleRate; }
+
+    public int getChannels(){ return channels; }
+
+    // サンプル数
+    public long getLength(){ return length; }
+
+    // 長さ (秒)
+    public double getDuration(){ return length / sampleRate; }
+
+    @Override public void close() throws IOException {
+        channel.close();
+    }
+}
@@ -0,0 +1,118 @@
+import java.util.Arrays;
+
+import jp.ac.kyoto_u.kuis.le4music.Le4MusicUtils;
+
+// 自己相関による基本周波数 (周期) の推定
+// 自己相関はウィーナー・ヒンチンの定理に従い、0 埋めした FFT → パワー → 逆 FFT で求める。
+// 遅れごとに積和をとる従来の方法 (O(N^2)) に対して O(N log N) で済む。
+//
+// 区間 x[start, start + length) と、それを tau だけずらした x[start + tau, ...) の積和
+//   ac[tau] = Σ_j g(x[start + j]) * g(x[start + j + tau])   (start + j + tau < end)
+// を minLag <= tau <= maxLag について求める。
+// g はゲート (振幅が gate 未満のサンプルを 0 とみなす) で、従来の
+//   if(sig_0 < gate || sig_1 < gate) sig_0 = 0;
+// と同じ結果になる。ゲートを使わないときは NO_GATE を渡す。
+//
+// 作業領域はインスタンスごとに持ち、フレーム間で使い回す (スレッドごとに作ること)
+public final class PitchTracker {
+
+    // ゲートを使わない
+    public static final double NO_GATE = Double.NEGATIVE_INFINITY;
+
+    private final int length;
+    private final int minLag;
+    private final int maxLag;
+    private final double gate;
+    private final RealFFT fft;
+    private final double[] bufA;
+    private final double[] bufB;
+    private final double[] ac;
+
+    public PitchTracker(int length, int minLag, int maxLag, double gate){
+        if(minLag < 0 || maxLag < minLag)
+            throw new IllegalArgumentException(
+                "lag range is invalid: minLag = " + minLag + ", maxLag = " + maxLag
+            );
+        this.length = length;
+        this.minLag = minLag;
+        this.maxLag = maxLag;
+        this.gate = gate;
+
+        // 巡回相関が折り返さないように length + maxLag 以上の長さで FFT する
+        final int fftSize = 1 << Math.max(1, Le4MusicUtils.nextPow2(length + maxLag));
+        this.fft = RealFFT.of(fftSize);
+        this.bufA = new double[fft.bufferSize()];
+        this.bufB = new double[fft.bufferSize()];
+        this.ac = new double[fftSize];
+    }
+
+    // 相関が正で最大となる遅れを返す (最初に現れた最大値をとる)
+    // 相関が正になる遅れがなければ 0 を返す
+    public int bestLag(double[] x, int start, int end){
+        autocorrelation(x, start, end);
+        double acMax = 0;
+        int lag = 0;
+        for(int tau = minLag; tau <= maxLag; tau++){
+            if(acMax < ac[tau]){
+                acMax = ac[tau]; lag = tau;
+            }
+        }
+        return lag;
+    }
+
+    // 相関が最大となる遅れを返す (最初に現れた最大値をとる、正でなくてもよい)
+    public int argmaxLag(double[] x, int start, int end){
+        autocorrelation(x, start, end);
+        double acMax = ac[minLag];
+        int lag = minLag;
+        for(int tau = minLag + 1; tau <= maxLag; tau++){
+            if(acMax < ac[tau]){
+                acMax = ac[tau]; lag = tau;
+            }
+        }
+        return lag;
+    }
+
+    // 自己相関を求める
+    // 返り値の配列は作業領域なので、次の呼び出しまでに使うこと (添字 = 遅れ)
+    public double[] autocorrelation(double[] x, int start, int end){
+        end = Math.min(end, x.length);
+        final int fftSize = fft.size();
+
+        /* 0 埋めした区間を用意する */
+        double energyA = 0, energyB = 0;
+        Arrays.fill(bufA, 0.0);
+        Arrays.fill(bufB, 0.0);
+        for(int j = 0; j < length + maxLag && start + j < end; j++){
+            final double v = (x[start + j] < gate) ? 0.0 : x[start + j];
+            bufB[j] = v;
+            energyB += v * v;
+            if(j < length){
+                bufA[j] = v;
+                energyA += v * v;
+            }
+        }
+
+        /* 相互相関 = 逆FFT( conj(A) * B ) */
+        fft.forward(bufA);
+        fft.forward(bufB);
+        for(int k = 0; k < fft.size2(); k++){
+            final double ar = bufA[2 * k], ai = bufA[2 * k + 1];
+            final double br = bufB[2 * k], bi = bufB[2 * k + 1];
+            bufB[2 * k]     = ar * br + ai * bi;
+            bufB[2 * k + 1] = ar * bi - ai * br;
+        }
+        fft.inverse(bufB, ac);
+
+        // 本来 0 になる値に残る丸め誤差を 0 に戻す (最大値の判定が乱れないように)
+        final double tol = 1e-10 * Math.sqrt(energyA * energyB);
+        for(int tau = 0; tau < fftSize; tau++){
+            if(Math.abs(ac[tau]) <= tol) ac[tau] = 0.0;
+        }
+        return ac;
+    }
+
+    public int getMinLag(){ return minLag; }
+
+    public int getMaxLag(){ return maxLag; }
+}
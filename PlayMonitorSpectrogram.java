@@ -1,6 +1,5 @@
 import java.lang.invoke.MethodHandles;
 import java.io.File;
-import java.util.Arrays;
 import java.util.Optional;
 import java.util.stream.IntStream;
 import java.util.concurrent.ExecutorService;
@@ -23,7 +22,6 @@ import org.apache.commons.cli.DefaultParser;
 import org.apache.commons.cli.Options;
 import org.apache.commons.cli.HelpFormatter;
 
-import org.apache.commons.math3.complex.Complex;
 import org.apache.commons.math3.util.MathArrays;
 
 import jp.ac.kyoto_u.kuis.le4music.Le4MusicUtils;
@@ -70,6 +68,9 @@ public final class PlayMonitorSpectrogram extends Application {
                       "Lower bound of frequency [Hz] (Default: 0.0)");
     options.addOption(null, "freq-up", true,
                       "Upper bound of frequency [Hz] (Default: Nyquist)");
+    options.addOption(null, "cache", false,
+                      "Pre-analyze WAVFILE in the background and look up the spectrogram " +
+                      "during playback instead of computing it");
   }
 
   @Override /* Application */
@@ -189,22 +190,44 @@ public final class PlayMonitorSpectrogram extends Application {
     scene.getStylesheets().add("src/le4music.css");
     primaryStage.setScene(scene);
     primaryStage.setTitle(getClass().getName());
+    /* 解析結果をパルスごとに JavaFX アプリケーションスレッドで描画する */
+    final RenderPump<Runnable> pump = new RenderPump<>(Runnable::run);
+
     /* ウインドウを閉じたときに他スレッドも停止させる */
-    primaryStage.setOnCloseRequest(req -> executor.shutdown());
+    primaryStage.setOnCloseRequest(req -> {
+      pump.stop();
+      executor.shutdown();
+    });
     primaryStage.show();
     Platform.setImplicitExit(true);
+    pump.start();
+
+    /* 振幅スペクトル (FFT の作業領域はフレーム間で使い回す) */
+    final int hop = (int)Math.round(interval * player.getSampleRate());
+    final IncrementalSpectrum stft = new IncrementalSpectrum(window, fftSize, null, hop);
+
+    /* --cache : ファイル全体をバックグラウンドで先に解析し、再生中は位置から引く */
+    final FeatureCache cache =
+      cmd.hasOption("cache") ? FeatureCache.start(wavFile, player.getFrameSize(), hop) : null;
 
     player.addAudioFrameListener((frame, position) -> executor.execute(() -> {
-      final double[] wframe = MathArrays.ebeMultiply(frame, window);
-      final Complex[] spectrum = Le4MusicUtils.rfft(Arrays.copyOf(wframe, fftSize));
+      final double[] specLog = new double[fftSize2];
+      // 解析済みなら表を引く (まだならその場で求める)
+      if (cache == null || !cache.specLog(position, specLog)) {
+        stft.update(frame, position, specLog);
+        for (int i = 0; i < fftSize2; i++)
+          specLog[i] = 20.0 * Math.log10(specLog[i]);
+      }
       final double posInSec = position / player.getSampleRate();
 
-      /* スペクトログラム描画 */
-      chart_sgram.addSpectrum(spectrum);
+      pump.post(() -> {
+        /* スペクトログラム描画 */
+        chart_sgram.addSpecLog(specLog);
 
-      /* 軸を更新 */
-      xAxis.setUpperBound(posInSec);
-      xAxis.setLowerBound(posInSec - duration);
+        /* 軸を更新 */
+        xAxis.setUpperBound(posInSec);
+        xAxis.setLowerBound(posInSec - duration);
+      });
     }));
 
     /* 録音開始 */
@@ -1,5 +1,7 @@
 import java.io.File;
+import java.util.Arrays;
 import java.util.stream.Collectors;
+import java.util.stream.DoubleStream;
 import java.util.stream.IntStream;
 import javax.sound.sampled.AudioSystem;
 import javax.sound.sampled.AudioFormat;
@@ -35,43 +37,41 @@ public final class PlotFundamentalFreq extends Application {
         final double frameDuration = Le4MusicUtils.frameDuration;   // 0.2
         final double shiftDuration = frameDuration / 8.0;           // 0.025
         
-        /* ファイル読み込みWAV */
+        /* ファイルを開くWAV (波形全体は読み込まず、少しずつ読みながら計算する) */
         final AudioInputStream stream = AudioSystem.getAudioInputStream(wavFile);
-        final double[] waveform = Le4MusicUtils.readWaveformMonaural(stream);   // 160000 in 10sec
         final AudioFormat format = stream.getFormat();
         final double sampleRate = format.getSampleRate();                       // 16000
-        stream.close();
         
         /* 1フレームとシフトのサンプル数 */
         final int frameSize = (int)Math.round(frameDuration * sampleRate);  // 3200 per sec
         final int shiftSize = (int)Math.round(shiftDuration * sampleRate);  // 400 per sec
         
         /* 基本周波数計算 */
-        int shiftSum = (int)Math.round((waveform.length - frameSize) / shiftSize);
-        double[] fundFreq = new double[shiftSum];
-        double[] ac = new double[shiftSum];
-        double ac_buf = 0;
-        for(int i = 0; i < shiftSum; i++){
-            ac_buf = 0;
-            for(int t = 10; t < (int)Math.round(frameSize-1); t++){
-                ac[i]=0;
-                for(int j = 0; j < frameSize - 1; j++){
-                    if(i * shiftSize + j + t >= waveform.length){
-                        ac[i] += 0;
-                    }else{
-                        double sig_0 = waveform[i * shiftSize + j];
-                        double sig_1 = waveform[i * shiftSize + j + t];
-                        
-                        // 小さい音ははじく
-                        if(sig_0 < 0.15 || sig_1 < 0.15) sig_0 = 0;
-                        ac[i] += sig_0 * sig_1;
-                    }
-                }
-                if(ac_buf < ac[i]){
-                    ac_buf = ac[i]; fundFreq[i] = t;
-                }
+        // 自己相関は PitchTracker により FFT で求める
+        // 小さい音ははじく (振幅 0.15 未満は 0 とみなす)
+        // 1 フレームの自己相関は frameSize - 1 + 最大の遅れ (frameSize - 2) サンプルを参照するので、
+        // その長さをフレームとしてブロックごとに読み、ブロック内のフレームは並列に求める
+        final int span = (frameSize - 1) + (frameSize - 2);
+        // PitchTracker (FFT と作業領域) はワーカーごとに一度だけ作り、全ブロックで使い回す
+        final ThreadLocal<PitchTracker> trackers =
+                ThreadLocal.withInitial(() -> new PitchTracker(frameSize - 1, 10, frameSize - 2, 0.15));
+        final int parallelism = FrameParallel.defaultParallelism();
+        final DoubleStream.Builder lags = DoubleStream.builder();
+        long length;
+        try(WaveformStream in = new WaveformStream(stream, span, shiftSize)){
+            WaveformStream.Block block;
+            while((block = in.next()) != null){
+                final double[] lag = new double[block.frames()];
+                final WaveformStream.Block b = block;
+                FrameParallel.forEach(lag.length, parallelism, trackers,
+                                      (tracker, k) -> lag[k] = tracker.bestLag(b.samples(), b.frameStart(k),
+                                                                               b.samples().length));
+                Arrays.stream(lag).forEach(lags::add);
             }
+            length = in.getSamplesRead();
         }
+        int shiftSum = (int)Math.round((length - frameSize) / shiftSize);
+        double[] fundFreq = Arrays.copyOf(lags.build().toArray(), shiftSum);
         
         /* データ系列を作成 */
         final ObservableList<XYChart.Data<Number, Number>> data =
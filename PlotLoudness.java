@@ -1,5 +1,7 @@
 import java.io.File;
+import java.util.Arrays;
 import java.util.stream.Collectors;
+import java.util.stream.DoubleStream;
 import java.util.stream.IntStream;
 import javax.sound.sampled.AudioSystem;
 import javax.sound.sampled.AudioFormat;
@@ -35,25 +37,39 @@ public final class PlotLoudness extends Application {
         final double frameDuration = Le4MusicUtils.frameDuration;   // 0.2
         final double shiftDuration = frameDuration / 8.0;           // 0.025
         
-        /* ファイル読み込みWAV */
+        /* ファイルを開くWAV (波形全体は読み込まず、少しずつ読みながら計算する) */
         final AudioInputStream stream = AudioSystem.getAudioInputStream(wavFile);
-        final double[] waveform = Le4MusicUtils.readWaveformMonaural(stream);   // 160000 in 10sec
         final AudioFormat format = stream.getFormat();
         final double sampleRate = format.getSampleRate();                       // 16000
-        stream.close();
         
         /* 1フレームとシフトのサンプル数 */
         final int frameSize = (int)Math.round(frameDuration * sampleRate);  // 3200 per sec
         final int shiftSize = (int)Math.round(shiftDuration * sampleRate);  // 400 per sec
         
-        /* 音量計算 */
-        double[] vol = new double[(int)Math.round((waveform.length - frameSize) / shiftSize)];
-        for(int i = 0; i < vol.length; i++){
-            vol[i] = 0;
-            for(int j = 0; j < frameSize; j++){
-                vol[i] += Math.pow(waveform[i * shiftSize + j], 2.0);
+        /* 音量計算 (ブロックごとに読み、ブロック内のフレームは並列に求める) */
+        // ここではフレームごとの二乗和だけを求め、全サンプル数が分かってから正規化する
+        final int parallelism = FrameParallel.defaultParallelism();
+        final DoubleStream.Builder powerSum = DoubleStream.builder();
+        long length;
+        try(WaveformStream in = new WaveformStream(stream, frameSize, shiftSize)){
+            WaveformStream.Block block;
+            while((block = in.next()) != null){
+                final double[] samples = block.samples();
+                final double[] sum = new double[block.frames()];
+                final WaveformStream.Block b = block;
+                FrameParallel.forEach(sum.length, parallelism, (none, k) -> {
+                    for(int j = 0; j < frameSize; j++){
+                        sum[k] += Math.pow(samples[b.frameStart(k) + j], 2.0);
+                    }
+                });
+                Arrays.stream(sum).forEach(powerSum::add);
             }
-            vol[i] = vol[i] / waveform.length;
+            length = in.getSamplesRead();
+        }
+        final double[] sums = powerSum.build().toArray();
+        double[] vol = new double[(int)Math.round((length - frameSize) / shiftSize)];
+        for(int i = 0; i < vol.length; i++){
+            vol[i] = sums[i] / length;
             vol[i] = 20 * Math.log10(Math.pow(vol[i], 0.5));
         }
         
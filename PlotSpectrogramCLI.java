@@ -2,9 +2,7 @@ import java.lang.invoke.MethodHandles;
 import java.io.File;
 import java.util.Arrays;
 import java.util.Optional;
-import java.util.stream.Stream;
 import java.util.stream.Collectors;
-import java.util.stream.Stream;
 import java.util.stream.IntStream;
 import javax.sound.sampled.AudioSystem;
 import javax.sound.sampled.AudioFormat;
@@ -30,9 +28,6 @@ import org.apache.commons.cli.DefaultParser;
 import org.apache.commons.cli.Options;
 import org.apache.commons.cli.HelpFormatter;
 
-import org.apache.commons.math3.complex.Complex;
-import org.apache.commons.math3.util.MathArrays;
-
 import jp.ac.kyoto_u.kuis.le4music.Le4MusicUtils;
 import jp.ac.kyoto_u.kuis.le4music.LineChartWithSpectrogram;
 
@@ -57,8 +52,14 @@ public final class PlotSpectrogramCLI extends Application {
                           Le4MusicUtils.frameDuration + ")");
         options.addOption("s", "shift", true,
                           "Duration of shift [seconds] (Default: frame/8)");
+        options.addOption("p", "parallelism", true,
+                          "Number of threads for frame analysis (Default: " +
+                          FrameParallel.defaultParallelism() + ")");
     }
     
+    // フレーム解析の並列度
+    private int parallelism = FrameParallel.defaultParallelism();
+    
     @Override public final void start(final Stage primaryStage)
         throws IOException,
                UnsupportedAudioFileException,
@@ -79,6 +80,13 @@ public final class PlotSpectrogramCLI extends Application {
 	    return;
 	}
 	final File wavFile = new File(pargs[0]);
+        parallelism = Optional.ofNullable(cmd.getOptionValue("parallelism"))
+                              .map(Integer::parseInt)
+                              .orElse(parallelism);
+        if(parallelism < 1)
+            throw new IllegalArgumentException(
+                "parallelism must be positive: " + parallelism
+            );
         
         /* WAVファイル読み込み */
         final AudioInputStream stream = AudioSystem.getAudioInputStream(wavFile);
@@ -141,38 +149,26 @@ public final class PlotSpectrogramCLI extends Application {
                                                                      double sampleRate,
                                                                      double nyquist,
                                                                      double[] waveform){
-        /* 窓関数とFFTのサンプル数 */
+        /* フレームとシフトの長さ (サンプル数と FFT の長さは FeaturePipeline が求める) */
         final double frameDuration = 
                 Optional.ofNullable(cmd.getOptionValue("frame"))
                         .map(Double::parseDouble)
                         .orElse(Le4MusicUtils.frameDuration);
-        final int frameSize = (int)Math.round(frameDuration * sampleRate);
-        final int fftSize = 1 << Le4MusicUtils.nextPow2(frameSize);
-        final int fftSize2 = (fftSize >> 1) + 1;
-        
-        /* シフトのサンプル数 */
         final double shiftDuration =
                 Optional.ofNullable(cmd.getOptionValue("shift"))
                         .map(Double::parseDouble)
                         .orElse(Le4MusicUtils.frameDuration / 8);
-        final int shiftSize = (int)Math.round(shiftDuration * sampleRate);
         
-        /* 窓関数を求め正規化する */
-        final double[] window = MathArrays.normalizeArray(
-            Arrays.copyOf(Le4MusicUtils.hanning(frameSize), fftSize), 1.0
-        );
-        
-        /* 短時間フーリエ変換本体 */
-        final Stream<Complex[]> spectrogram =
-                Le4MusicUtils.sliding(waveform, window, shiftSize)
-                             .map(frame -> Le4MusicUtils.rfft(frame));
-        
-        /* 複素スペクトログラムを対数振幅スペクトログラムに */
+        /* 短時間フーリエ変換本体 (RealFFT で振幅スペクトルを直接求める) */
+        final FeaturePipeline pipeline =
+                new FeaturePipeline(sampleRate, frameDuration, shiftDuration);
+        pipeline.setParallelism(parallelism);
         final double[][] specLog =
-                spectrogram.map(sp -> Arrays.stream(sp)
-                                            .mapToDouble(c -> 20.0 * Math.log10(c.abs()))
-                                            .toArray())
-                           .toArray(n -> new double[n][]);
+                Arrays.stream(pipeline.process(waveform))
+                      .map(sp -> Arrays.stream(sp)
+                                       .map(c -> 20.0 * Math.log10(c))
+                                       .toArray())
+                      .toArray(n -> new double[n][]);
         
         /* X軸を作成 */
         final double duration = (specLog.length - 1) * shiftDuration;
@@ -190,7 +186,7 @@ public final class PlotSpectrogramCLI extends Application {
         /* chチャートを作成 */
         final LineChartWithSpectrogram<Number, Number> chart =
                 new LineChartWithSpectrogram<>(xAxis, yAxis);
-        chart.setParameters(specLog.length, fftSize2, nyquist);
+        chart.setParameters(specLog.length, pipeline.getFFTSize2(), nyquist);
         chart.setTitle("Spectrogram");
         Arrays.stream(specLog).forEach(chart::addSpecLog);
         chart.setCreateSymbols(false);
@@ -213,31 +209,14 @@ public final class PlotSpectrogramCLI extends Application {
         final int shiftSize = (int)Math.round(shiftDuration * sampleRate);  // 400 per sec
         
         /* 基本周波数計算 */
+        // 自己相関は PitchTracker により FFT で求める
+        // 小さい音ははじく (振幅 0.1 未満は 0 とみなす)
         int shiftSum = (int)Math.round((waveform.length - frameSize) / shiftSize);
         double[] fundFreq = new double[shiftSum];
-        double[] ac = new double[shiftSum];
-        double ac_buf = 0;
-        for(int i = 0; i < shiftSum; i++){
-            ac_buf = 0;
-            for(int t = 10; t < (int)Math.round(frameSize-1); t++){
-                ac[i]=0;
-                for(int j = 0; j < frameSize - 1; j++){
-                    if(i * shiftSize + j + t >= waveform.length){
-                        ac[i] += 0;
-                    }else{
-                        double sig_0 = waveform[i * shiftSize + j];
-                        double sig_1 = waveform[i * shiftSize + j + t];
-                        
-                        // 小さい音ははじく
-                        if(sig_0 < 0.1 || sig_1 < 0.1) sig_0 = 0;
-                        ac[i] += sig_0 * sig_1;
-                    }
-                }
-                if(ac_buf < ac[i]){
-                    ac_buf = ac[i]; fundFreq[i] = t;
-                }
-            }
-        }
+        // フレームごとに並列に求める (PitchTracker はワーカーごとに作る)
+        FrameParallel.forEach(shiftSum, parallelism,
+                              () -> new PitchTracker(frameSize - 1, 10, frameSize - 2, 0.1),
+                              (tracker, i) -> fundFreq[i] = tracker.bestLag(waveform, i * shiftSize, waveform.length));
         
         /* データ系列を作成 */
         final ObservableList<XYChart.Data<Number, Number>> data =
@@ -391,43 +370,18 @@ public final class PlotSpectrogramCLI extends Application {
         final double frameDuration = Le4MusicUtils.frameDuration;   // 0.2
         final double shiftDuration = frameDuration / 8.0;           // 0.025
         
-        /* 窓関数とFFTのサンプル数 */
-        final int frameSize = (int)Math.round(frameDuration * sampleRate);
-        final int fftSize = 1 << Le4MusicUtils.nextPow2(frameSize);
-        final int fftSize2 = (fftSize >> 1) + 1;
-        
-        /* シフトのサンプル数 */
-        final int shiftSize = (int)Math.round(shiftDuration * sampleRate);
-        
-        /* 窓関数を求め正規化する */
-        final double[] window = MathArrays.normalizeArray(
-            Arrays.copyOf(Le4MusicUtils.hanning(frameSize), fftSize), 1.0
-        );
-        
-        /* 短時間フーリエ変換本体 */
-        final Stream<Complex[]> spectrogram =
-                Le4MusicUtils.sliding(waveform, window, shiftSize)
-                             .map(frame -> Le4MusicUtils.rfft(frame));
-        
-        /* 複素スペクトログラムを対数振幅スペクトログラムに */
-        final double[][] specLog =
-                spectrogram.map(sp -> Arrays.stream(sp)
-                                            .mapToDouble(c -> c.abs())
-                                            .toArray())
-                           .toArray(n -> new double[n][]);
+        /* 短時間フーリエ変換本体 (RealFFT で振幅スペクトルを直接求める) */
+        final FeaturePipeline pipeline =
+                new FeaturePipeline(sampleRate, frameDuration, shiftDuration);
+        pipeline.setParallelism(parallelism);
+        final double[][] specAbs = pipeline.process(waveform);
         
         // クロマベクトル
-        double[][] chromaVec = new double[specLog.length][17];
-        for(int i = 0; i < specLog.length; i++){
-            for(int j = 0; j < 17; j++){
-                if(j < 12){
-                    chromaVec[i][j] = -0.15 / chromaPower(specLog[i], j, sampleRate * 0.5, fftSize2);
-                    if(chromaVec[i][j] == 0) chromaVec[i][j] = Integer.MIN_VALUE;
-                }else{
-                    chromaVec[i][j] = 0;
-                }
-            }
-        }
+        // (音名ごとのビンの表は ChromaExtractor が一度だけ作る)
+        final ChromaExtractor chroma = ChromaExtractor.of(pipeline.getNyquist(), pipeline.getFFTSize2());
+        double[][] chromaVec = new double[specAbs.length][17];
+        FrameParallel.forEach(specAbs.length, parallelism,
+                              (none, i) -> chroma.chromaVector(specAbs[i], chromaVec[i]));
         
         return chromaVec;
     }
@@ -441,30 +395,12 @@ public final class PlotSpectrogramCLI extends Application {
         final double frameDuration = Le4MusicUtils.frameDuration;   // 0.2
         final double shiftDuration = frameDuration / 8.0;           // 0.025
         
-        // 窓関数とFFTのサンプル数 
-        final int frameSize = (int)Math.round(frameDuration * sampleRate);
-        final int fftSize = 1 << Le4MusicUtils.nextPow2(frameSize);
-        final int fftSize2 = (fftSize >> 1) + 1;
-        
-        // シフトのサンプル数 
-        final int shiftSize = (int)Math.round(shiftDuration * sampleRate);
-        
-        // 窓関数を求め正規化する 
-        final double[] window = MathArrays.normalizeArray(
-            Arrays.copyOf(Le4MusicUtils.hanning(frameSize), fftSize), 1.0
-        );
-        
-        // 短時間フーリエ変換本体 
-        final Stream<Complex[]> spectrogram =
-                Le4MusicUtils.sliding(waveform, window, shiftSize)
-                             .map(frame -> Le4MusicUtils.rfft(frame));
-        
-        // 複素スペクトログラムを対数振幅スペクトログラムに 
-        final double[][] specLog =
-                spectrogram.map(sp -> Arrays.stream(sp)
-                                            .mapToDouble(c -> c.abs())
-                                            .toArray())
-                           .toArray(n -> new double[n][]);
+        // 短時間フーリエ変換本体 (RealFFT で振幅スペクトルを直接求める)
+        final FeaturePipeline pipeline =
+                new FeaturePipeline(sampleRate, frameDuration, shiftDuration);
+        pipeline.setParallelism(parallelism);
+        final double[][] specAbs = pipeline.process(waveform);
+        final int fftSize2 = pipeline.getFFTSize2();
         
         // 基本周波数の候補集合
         // 候補集合は3オクターブの範囲で設定
@@ -478,16 +414,15 @@ public final class PlotSpectrogramCLI extends Application {
         // ノートナンバー = N + j * 0.1
         // j = 10 * (ノートナンバー - N)
         int N = 60;     // 候補集合の最低音のノートナンバー
-        double[][] fundFreq = new double[specLog.length][ffCandSet.length];
-        for(int i = 0; i < fundFreq.length; i++){
-            for(int j = 0; j < ffCandSet.length; j++){
-                fundFreq[i][j] = melo_SHS(specLog[i], N + j * 0.1, nyquist, fftSize2);
-            }
-        }
+        // (各候補の倍音のビンの表は SHSEngine が一度だけ作る)
+        final SHSEngine shs = SHSEngine.of(nyquist, fftSize2, fftSize2, N, ffCandSet.length);
+        double[][] fundFreq = new double[specAbs.length][ffCandSet.length];
+        FrameParallel.forEach(fundFreq.length, parallelism,
+                              (none, i) -> shs.scores(specAbs[i], fundFreq[i]));
         
         // 音高推定
-        double[] meloLike = new double[specLog.length];
-        for(int i = 0; i < specLog.length; i++){
+        double[] meloLike = new double[specAbs.length];
+        for(int i = 0; i < specAbs.length; i++){
             meloLike[i] = N + argmax(fundFreq[i]) / 10;
         }
         
@@ -546,47 +481,4 @@ public final class PlotSpectrogramCLI extends Application {
         }
         return argmax;
     }
-    
-    // 各音名のパワーを求める
-    // toneName は 0 〜 12 で C, C#, ... B に対応
-    public double chromaPower(double[] spec, int toneName, double nyquist, int fftSize){
-        double halfhalftone = Math.pow(2.0, 1.0/30.0);
-        double powerSum = 0;
-        double[] toneFreq = new double[12];
-        for(int i = 0; i < 12 ; i++){
-            toneFreq[i] = n_to_f(60+i);
-        }
-        
-        double[] baseFreq = new double[5];
-        int div = 1;
-        for(int i = 0; i <= 4; i++){
-            baseFreq[i] = toneFreq[toneName] * Math.pow(2.0, (double)(i-2));
-            for(int j = 0; j < spec.length; j++){
-                double frameFreq = spec[j];
-                if(freq(nyquist, fftSize, j) >= baseFreq[i] / halfhalftone
-                        && freq(nyquist, fftSize, j) <= baseFreq[i] * halfhalftone){
-                    powerSum += frameFreq;
-                    div++;
-                }
-            }
-        }
-        return powerSum / div;
-    }
-    
-    // SHSによりメロディの温厚を推定
-    public double melo_SHS(double[] spec, double toneNum, double nyquist, int fftSize){
-        int N = 5;  // 第 N 倍音までとる
-        double candFreq = n_to_f(toneNum);
-        double powerSum = 0;
-        
-        for(int i = 0; i < spec.length; i++){
-            for(int j = 1; j <= N; j++){
-                if(Math.abs(candFreq * j - freq(nyquist, fftSize, i)) < 10){
-                    powerSum += spec[i];
-                }
-            }
-        }
-        
-        return Math.abs(powerSum);
-    }
 }
@@ -1,7 +1,6 @@
 import java.io.File;
 import java.util.Arrays;
 import java.util.stream.Collectors;
-import java.util.stream.Stream;
 import java.util.stream.IntStream;
 import javax.sound.sampled.AudioSystem;
 import javax.sound.sampled.AudioFormat;
@@ -17,9 +16,6 @@ import javafx.scene.chart.NumberAxis;
 import javafx.collections.ObservableList;
 import javafx.collections.FXCollections;
 
-import org.apache.commons.math3.complex.Complex;
-import org.apache.commons.math3.util.MathArrays;
-
 import jp.ac.kyoto_u.kuis.le4music.Le4MusicUtils;
 import jp.ac.kyoto_u.kuis.le4music.LineChartWithSpectrogram;
 
@@ -43,43 +39,26 @@ public final class PlotSpectrogramSimple extends Application {
         final double frameDuration = Le4MusicUtils.frameDuration;
         final double shiftDuration = frameDuration / 8.0;
         
-        /* WAVファイル読み込み */
+        /* WAVファイルを開く (波形全体は読み込まず、少しずつ読みながら変換する) */
         final AudioInputStream stream = AudioSystem.getAudioInputStream(wavFile);
-        final double[] waveform = Le4MusicUtils.readWaveformMonaural(stream);
         final AudioFormat format = stream.getFormat();
         final double sampleRate = format.getSampleRate();
-        stream.close();
-        
-        /* 窓関数とFFTのサンプル数 */
-        final int frameSize = (int)Math.round(frameDuration * sampleRate);
-        final int fftSize = 1 << Le4MusicUtils.nextPow2(frameSize);
-        final int fftSize2 = (fftSize >> 1) + 1;
-        
-        /* シフトのサンプル数 */
-        final int shiftSize = (int)Math.round(shiftDuration * sampleRate);
-        
-        /* 窓関数を求め正規化する */
-        final double[] window = MathArrays.normalizeArray(
-            Arrays.copyOf(Le4MusicUtils.hanning(frameSize), fftSize), 1.0
-        );
         
-        /* 短時間フーリエ変換本体 */
-        final Stream<Complex[]> spectrogram =
-                Le4MusicUtils.sliding(waveform, window, shiftSize)
-                             .map(frame -> Le4MusicUtils.rfft(frame));
+        /* 窓関数・FFT・シフトのサンプル数は FeaturePipeline が求める */
+        final FeaturePipeline pipeline =
+                new FeaturePipeline(sampleRate, frameDuration, shiftDuration);
+        final int fftSize2 = pipeline.getFFTSize2();
         
-        /* 複素スペクトログラムを対数振幅スペクトログラムに */
-        final double[][] specLog =
-                spectrogram.map(sp -> Arrays.stream(sp)
-                                            .mapToDouble(c -> 20.0 * Math.log10(c.abs()))
-                                            .toArray())
-                           .toArray(n -> new double[n][]);
+        /* フレーム数はヘッダの長さから求める (スペクトログラム全体は残さずにチャートを用意する) */
+        if(stream.getFrameLength() == AudioSystem.NOT_SPECIFIED)
+            throw new UnsupportedAudioFileException(wavFile + ": length is not specified");
+        final int frames = pipeline.frameCount((int)stream.getFrameLength());
         
         /* X軸を作成 */
         final NumberAxis xAxis = new NumberAxis();
         xAxis.setLabel("Time (seconds)");
         xAxis.setLowerBound(0.0);
-        xAxis.setUpperBound(specLog.length * shiftDuration);
+        xAxis.setUpperBound(frames * shiftDuration);
         
         /* Y軸を作成 */
         final NumberAxis yAxis = new NumberAxis();
@@ -90,9 +69,19 @@ public final class PlotSpectrogramSimple extends Application {
         /* chチャートを作成 */
         final LineChartWithSpectrogram<Number, Number> chart =
                 new LineChartWithSpectrogram<>(xAxis, yAxis);
-        chart.setParameters(specLog.length, fftSize2, sampleRate * 0.5);
+        chart.setParameters(frames, fftSize2, sampleRate * 0.5);
         chart.setTitle("Spectrogram");
-        Arrays.stream(specLog).forEach(chart::addSpecLog);
+        
+        /* 短時間フーリエ変換本体 (対数振幅スペクトルを 1 列ずつチャートに渡し、手元には残さない) */
+        pipeline.addFrameListener((specAbs, i) ->
+            chart.addSpecLog(Arrays.stream(specAbs)
+                                   .map(c -> 20.0 * Math.log10(c))
+                                   .toArray())
+        );
+        try(WaveformStream in = new WaveformStream(stream, pipeline.getFrameSize(),
+                                                   pipeline.getShiftSize())){
+            pipeline.process(in);
+        }
         chart.setCreateSymbols(false);
         chart.setLegendVisible(false);
         
@@ -1,7 +1,6 @@
 import java.io.File;
 import java.util.Arrays;
 import java.util.stream.Collectors;
-import java.util.stream.Stream;
 import java.util.stream.IntStream;
 import javax.sound.sampled.AudioSystem;
 import javax.sound.sampled.AudioFormat;
@@ -17,9 +16,6 @@ import javafx.scene.chart.NumberAxis;
 import javafx.collections.ObservableList;
 import javafx.collections.FXCollections;
 
-import org.apache.commons.math3.complex.Complex;
-import org.apache.commons.math3.util.MathArrays;
-
 import jp.ac.kyoto_u.kuis.le4music.Le4MusicUtils;
 import jp.ac.kyoto_u.kuis.le4music.LineChartWithSpectrogram;
 
@@ -54,30 +50,15 @@ public final class PlotSpeechRecog extends Application {
         final double sampleRate = format.getSampleRate();
         stream.close();
         
-        /* 窓関数とFFTのサンプル数 */
-        final int frameSize = (int)Math.round(frameDuration * sampleRate);
-        final int fftSize = 1 << Le4MusicUtils.nextPow2(frameSize);
-        final int fftSize2 = (fftSize >> 1) + 1;
-        
-        /* シフトのサンプル数 */
-        final int shiftSize = (int)Math.round(shiftDuration * sampleRate);
-        
-        /* 窓関数を求め正規化する */
-        final double[] window = MathArrays.normalizeArray(
-            Arrays.copyOf(Le4MusicUtils.hanning(frameSize), fftSize), 1.0
-        );
-        
-        /* 短時間フーリエ変換本体 */
-        final Stream<Complex[]> spectrogram =
-                Le4MusicUtils.sliding(waveform, window, shiftSize)
-                             .map(frame -> Le4MusicUtils.rfft(frame));
-        
-        /* 複素スペクトログラムを対数振幅スペクトログラムに */
+        /* 短時間フーリエ変換本体 (RealFFT で振幅スペクトルを直接求める) */
+        final FeaturePipeline pipeline =
+                new FeaturePipeline(sampleRate, frameDuration, shiftDuration);
         final double[][] specLog =
-                spectrogram.map(sp -> Arrays.stream(sp)
-                                            .mapToDouble(c -> 20.0 * Math.log10(c.abs()))
-                                            .toArray())
-                           .toArray(n -> new double[n][]);
+                Arrays.stream(pipeline.process(waveform))
+                      .map(sp -> Arrays.stream(sp)
+                                       .map(c -> 20.0 * Math.log10(c))
+                                       .toArray())
+                      .toArray(n -> new double[n][]);
         
         /* X軸を作成 */
         final NumberAxis xAxis = new NumberAxis();
@@ -94,7 +75,7 @@ public final class PlotSpeechRecog extends Application {
         /* chチャートを作成 */
         final LineChartWithSpectrogram<Number, Number> chart =
                 new LineChartWithSpectrogram<>(xAxis, yAxis);
-        chart.setParameters(specLog.length, fftSize2, sampleRate * 0.5);
+        chart.setParameters(specLog.length, pipeline.getFFTSize2(), pipeline.getNyquist());
         chart.setTitle("Spectrogram");
         Arrays.stream(specLog).forEach(chart::addSpecLog);
         chart.setCreateSymbols(false);
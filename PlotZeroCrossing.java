@@ -76,35 +76,18 @@ public final class PlotZeroCrossing extends Application {
                            .toArray(n -> new double[n][]);
         
         /* 基本周波数計算 */
+        // 自己相関は PitchTracker により FFT で求める
+        // 小さい音ははじく (振幅 0.15 未満は 0 とみなす)
         int shiftSum = (int)Math.round((waveform.length - frameSize) / shiftSize);
         double[] fundFreq = new double[shiftSum];
-        double[] ac = new double[shiftSum];
-        double ac_buf = 0;
-        for(int i = 0; i < shiftSum; i++){
-            ac_buf = 0;
-            for(int t = 10; t < (int)Math.round(frameSize-1); t++){
-                ac[i]=0;
-                for(int j = 0; j < frameSize - 1; j++){
-                    if(i * shiftSize + j + t >= waveform.length){
-                        ac[i] += 0;
-                    }else{
-                        double sig_0 = waveform[i * shiftSize + j];
-                        double sig_1 = waveform[i * shiftSize + j + t];
-                        
-                        // 小さい音ははじく
-                        if(sig_0 < 0.15 || sig_1 < 0.15) sig_0 = 0;
-                        ac[i] += sig_0 * sig_1;
-                    }
-                }
-                if(ac_buf < ac[i]){
-                    ac_buf = ac[i]; fundFreq[i] = t;
-                }
-            }
-        }
-        
-        /* ゼロ交差数計算 */
+        // ゼロ交差数とあわせてフレームごとに並列に求める (PitchTracker はワーカーごとに作る)
         int[] zero_crossing = new int[shiftSum];
-        for(int i = 0; i < shiftSum; i++){
+        FrameParallel.forEach(shiftSum, FrameParallel.defaultParallelism(),
+                              () -> new PitchTracker(frameSize - 1, 10, frameSize - 2, 0.15),
+                              (tracker, i) -> {
+            fundFreq[i] = tracker.bestLag(waveform, i * shiftSize, waveform.length);
+            
+            /* ゼロ交差数計算 */
             zero_crossing[i] = 0;
             for(int j = 0; j < frameSize - 1; j++){
                 if((waveform[i * shiftSize + j] >= 0 && waveform[i * shiftSize + j + 1] < 0)
@@ -115,7 +98,7 @@ public final class PlotZeroCrossing extends Application {
             if(zero_crossing[i] / frameDuration > 3 * fundFreq[i]){
                 fundFreq[i] = 0;
             }
-        }
+        });
         
         System.out.println(zero_crossing[100]);
         
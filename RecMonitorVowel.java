@@ -0,0 +1,197 @@
+import java.lang.invoke.MethodHandles;
+import java.io.File;
+import java.util.Optional;
+import javax.sound.sampled.AudioSystem;
+
+import javafx.animation.AnimationTimer;
+import javafx.application.Application;
+import javafx.application.Platform;
+import javafx.stage.Stage;
+import javafx.scene.Scene;
+import javafx.scene.text.Text;
+import javafx.scene.text.Font;
+import javafx.scene.layout.VBox;
+
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.DefaultParser;
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.HelpFormatter;
+
+import jp.ac.kyoto_u.kuis.le4music.Le4MusicUtils;
+import jp.ac.kyoto_u.kuis.le4music.Recorder;
+import static jp.ac.kyoto_u.kuis.le4music.Le4MusicUtils.verbose;
+
+import java.io.IOException;
+import javax.sound.sampled.UnsupportedAudioFileException;
+import javax.sound.sampled.LineUnavailableException;
+import org.apache.commons.cli.ParseException;
+
+// マイク入力の母音をリアルタイムに認識して表示する
+// 学習済みのモデルファイル (LearnSpeechRecog_R が書き出す <学習用WAVファイル名>.model) を読み込み、
+// Recorder の各フレームのケプストラムから母音を認識する (VowelRecognizer, FFT の作業領域は使い回す)。
+// 認識結果は直近のフレームの多数決でならしてから表示する (VowelSmoother)。
+// 録音のコールバックから認識が終わるまでの遅延を測り、フレームの間隔と並べて表示する
+// (データ処理スレッドでは記録だけを行い、表示は間隔をあけて JavaFX アプリケーションスレッドで書き換える)。
+public final class RecMonitorVowel extends Application {
+
+  private static final Options options = new Options();
+  private static final String helpMessage =
+    MethodHandles.lookup().lookupClass().getName() + " [OPTIONS] <MODELFILE>";
+
+  // 表示する母音の名前 (モデルの母音の順)
+  private static final String[] VOWEL_NAMES = {"あ", "い", "う", "え", "お"};
+
+  // ならすフレーム数の既定値
+  private static final int DEFAULT_SMOOTH = 5;
+  // これより小さい音 (フレームの RMS) は母音なしとする
+  private static final double DEFAULT_GATE = 0.01;
+  // 遅延の表示を書き換える間隔 (ナノ秒)
+  private static final long STATS_INTERVAL = 500_000_000L;
+
+  static {
+    /* コマンドラインオプション定義 */
+    options.addOption("h", "help", false, "Display this help and exit");
+    options.addOption("v", "verbose", false, "Verbose output");
+    options.addOption("m", "mixer", true,
+                      "Index of Mixer object that supplies a SourceDataLine object. " +
+                      "To check the proper index, use CheckAudioSystem");
+    options.addOption("i", "interval", true,
+                      "Frame update interval [seconds] " +
+                      "(Default: " + Le4MusicUtils.frameInterval + ")");
+    options.addOption("s", "smooth", true,
+                      "Number of frames in the majority vote (Default: " + DEFAULT_SMOOTH + ")");
+    options.addOption("g", "gate", true,
+                      "RMS below which a frame is treated as silence (Default: " + DEFAULT_GATE + ")");
+  }
+
+  @Override /* Application */
+  public final void start(final Stage primaryStage)
+  throws IOException,
+         UnsupportedAudioFileException,
+         LineUnavailableException,
+         ParseException {
+    /* コマンドライン引数処理 */
+    final String[] args = getParameters().getRaw().toArray(new String[0]);
+    final CommandLine cmd = new DefaultParser().parse(options, args);
+    if (cmd.hasOption("help")) {
+      new HelpFormatter().printHelp(helpMessage, options);
+      Platform.exit();
+      return;
+    }
+    verbose = cmd.hasOption("verbose");
+
+    final String[] pargs = cmd.getArgs();
+    if (pargs.length < 1) {
+      System.out.println("MODELFILE is not given.");
+      new HelpFormatter().printHelp(helpMessage, options);
+      Platform.exit();
+      return;
+    }
+
+    /* モデルを読み込む (フレーム長とサンプリング周波数はモデルに合わせる) */
+    final VowelRecognizer recognizer = new VowelRecognizer(VowelModel.load(new File(pargs[0])));
+    final VowelModel model = recognizer.getModel();
+
+    final double interval =
+      Optional.ofNullable(cmd.getOptionValue("interval"))
+        .map(Double::parseDouble)
+        .orElse(Le4MusicUtils.frameInterval);
+    final int smooth =
+      Optional.ofNullable(cmd.getOptionValue("smooth"))
+        .map(Integer::parseInt)
+        .orElse(DEFAULT_SMOOTH);
+    final double gate =
+      Optional.ofNullable(cmd.getOptionValue("gate"))
+        .map(Double::parseDouble)
+        .orElse(DEFAULT_GATE);
+
+    /* Recorderオブジェクトを生成 */
+    final Recorder.Builder builder = Recorder.builder();
+    builder.sampleRate((float)model.getSampleRate());
+    Optional.ofNullable(cmd.getOptionValue("mixer"))
+      .map(Integer::parseInt)
+      .map(index -> AudioSystem.getMixerInfo()[index])
+      .ifPresent(builder::mixer);
+    builder.frameDuration(model.getFrameDuration());
+    builder.interval(interval);
+    builder.daemon();
+    final Recorder recorder = builder.build();
+    if (recorder.getFrameSize() != recognizer.getFrameSize())
+      throw new IllegalArgumentException(
+        "recorder frame size " + recorder.getFrameSize() +
+        " does not match the model: " + recognizer.getFrameSize()
+      );
+
+    /* 表示部 (認識した母音と遅延) */
+    final Text vowelText = new Text(" ");
+    vowelText.setFont(Font.font(null, 200));
+    final Text latencyText = new Text();
+    latencyText.setFont(Font.font("Monospaced", 14));
+    final VBox root = new VBox(15);
+    root.getChildren().addAll(vowelText, latencyText);
+
+    /* 描画ウインドウ作成 */
+    final Scene scene = new Scene(root, 400, 400);
+    scene.getStylesheets().add("le4music.css");
+    primaryStage.setScene(scene);
+    primaryStage.setTitle(getClass().getName());
+
+    /* データ処理スレッド (間に合わないときは古いフレームを捨てる) */
+    final AnalysisDispatcher executor = new AnalysisDispatcher(
+      AnalysisDispatcher.DEFAULT_CAPACITY, AnalysisDispatcher.DropPolicy.DROP_OLDEST
+    );
+    final RenderPump<Runnable> pump = new RenderPump<>(Runnable::run);
+
+    /* 録音のコールバックから認識が終わるまでの遅延 (表示は STATS_INTERVAL ごとに書き換える) */
+    final LatencyHistogram latency = new LatencyHistogram();
+    final long intervalNanos = Math.round(interval * 1e9);
+    final AnimationTimer stats = new AnimationTimer() {
+      private long last = 0;
+
+      @Override public void handle(long now) {
+        if (now - last < STATS_INTERVAL) return;
+        last = now;
+        final long p99 = latency.percentile(99);
+        latencyText.setText(String.format(
+          "latency p50 %.2f ms / p99 %.2f ms (interval %.1f ms)%s",
+          latency.percentile(50) / 1e6, p99 / 1e6, interval * 1e3,
+          p99 > intervalNanos ? "  OVER" : ""
+        ));
+      }
+    };
+
+    /* ウインドウを閉じたときに他スレッドも停止させる */
+    primaryStage.setOnCloseRequest(req -> {
+      if (verbose) System.out.println("recorder: " + executor);
+      stats.stop();
+      pump.stop();
+      executor.shutdown();
+    });
+    primaryStage.show();
+    pump.start();
+    stats.start();
+
+    final VowelSmoother smoother = new VowelSmoother(smooth, model.vowels());
+
+    recorder.addAudioFrameListener((frame, position) -> {
+      final long callback = System.nanoTime();
+      executor.execute(() -> {
+        // 小さい音は母音なし、それ以外はフレームの母音を認識する
+        double power = 0;
+        for (double x : frame) power += x * x;
+        final int label = Math.sqrt(power / frame.length) < gate
+          ? VowelSmoother.NONE
+          : recognizer.classifyFrame(frame, 0);
+        final int vowel = smoother.update(label);
+        latency.record(System.nanoTime() - callback);
+
+        final String name = vowel == VowelSmoother.NONE ? " " : VOWEL_NAMES[vowel];
+        pump.post(() -> vowelText.setText(name));
+      });
+    });
+
+    /* 録音開始 */
+    Platform.runLater(recorder::start);
+  }
+
+}
@@ -1,10 +1,6 @@
 import java.lang.invoke.MethodHandles;
 import java.io.File;
 import java.util.Optional;
-import java.util.stream.IntStream;
-import java.util.stream.Collectors;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 import javax.sound.sampled.AudioSystem;
 import javax.sound.sampled.Mixer;
 
@@ -12,11 +8,6 @@ import javafx.application.Application;
 import javafx.application.Platform;
 import javafx.stage.Stage;
 import javafx.scene.Scene;
-import javafx.scene.chart.XYChart;
-import javafx.scene.chart.LineChart;
-import javafx.scene.chart.NumberAxis;
-import javafx.collections.ObservableList;
-import javafx.collections.FXCollections;
 
 import org.apache.commons.cli.CommandLine;
 import org.apache.commons.cli.DefaultParser;
@@ -91,67 +82,24 @@ public final class RecMonitorWaveform extends Application {
     builder.daemon();
     final Recorder recorder = builder.build();
 
-    /* データ処理スレッド */
-    final ExecutorService executor = Executors.newSingleThreadExecutor();
-
-    /* データ系列を作成 */
-    final ObservableList<XYChart.Data<Number, Number>> data =
-      IntStream.range(-recorder.getFrameSize(), 0)
-        .mapToDouble(i -> i / recorder.getSampleRate())
-        .mapToObj(t -> new XYChart.Data<Number, Number>(t, 0.0))
-        .collect(Collectors.toCollection(FXCollections::observableArrayList));
-
-    /* データ系列に名前をつける */
-    final XYChart.Series<Number, Number> series =
-      new XYChart.Series<>("Waveform", data);
-
-    /* 波形リアルタイム表示 */
-    /* 軸を作成 */
-    /* 時間軸（横軸） */
-    final NumberAxis xAxis = new NumberAxis(
-      /* axisLabel  = */ "Time (seconds)",
-      /* lowerBound = */ -frameDuration,
-      /* upperBound = */ 0.0,
-      /* tickUnit   = */ Le4MusicUtils.autoTickUnit(frameDuration)
-    );
-    /* 周波数軸（縦軸） */
-    final NumberAxis yAxis = new NumberAxis(
-      /* axisLabel  = */ "Amplitude",
-      /* lowerBound = */ -1.0,
-      /* upperBound = */ +1.0,
-      /* tickUnit   = */ Le4MusicUtils.autoTickUnit(1.0 * 2)
-    );
-
-    /* チャートを作成 */
-    final LineChart<Number, Number> chart = new LineChart<>(xAxis, yAxis);
-    chart.setTitle("Waveform");
-    chart.setLegendVisible(false);
-    /* データの追加・削除時にアニメーション（フェードイン・アウトなど）しない */
-    chart.setAnimated(false);
-    /* データアイテムに対してシンボルを作成しない */
-    chart.setCreateSymbols(false);
-
-    chart.getData().add(series);
+    /* 波形リアルタイム表示 (サンプルを Canvas に直接描く) */
+    final WaveformCanvas waveform =
+      new WaveformCanvas(recorder.getFrameSize(), recorder.getSampleRate(), 1.0);
 
     /* 描画ウインドウ作成 */
-    final Scene scene  = new Scene(chart, 800, 600);
+    final Scene scene  = new Scene(waveform, 800, 600);
     scene.getStylesheets().add("src/le4music.css");
     primaryStage.setScene(scene);
     primaryStage.setTitle(getClass().getName());
-    /* ウインドウを閉じたときに他スレッドも停止させる */
-    primaryStage.setOnCloseRequest(req -> executor.shutdown());
+    /* ウインドウを閉じたときに描画も止める */
+    primaryStage.setOnCloseRequest(req -> waveform.stop());
     primaryStage.show();
+    waveform.start();
 
-    recorder.addAudioFrameListener((frame, position) -> executor.execute(() -> {
-      IntStream.range(0, recorder.getFrameSize()).forEach(i -> {
-        final XYChart.Data<Number, Number> datum = data.get(i);
-        datum.setXValue((i + position - recorder.getFrameSize()) / recorder.getSampleRate());
-        datum.setYValue(frame[i]);
-      });
-      final double posInSec = position / recorder.getSampleRate();
-      xAxis.setLowerBound(posInSec - frameDuration);
-      xAxis.setUpperBound(posInSec);
-    }));
+    /* 録音スレッドではサンプルを写すだけ (描画は次のパルスで行われる) */
+    recorder.addAudioFrameListener((frame, position) ->
+      waveform.setWaveform(frame, (position - recorder.getFrameSize()) / recorder.getSampleRate())
+    );
 
     /* 録音開始 */
     Platform.runLater(recorder::start);
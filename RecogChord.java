@@ -1,7 +1,6 @@
 import java.io.File;
 import java.util.Arrays;
 import java.util.stream.Collectors;
-import java.util.stream.Stream;
 import java.util.stream.IntStream;
 import javax.sound.sampled.AudioSystem;
 import javax.sound.sampled.AudioFormat;
@@ -17,9 +16,6 @@ import javafx.scene.chart.NumberAxis;
 import javafx.collections.ObservableList;
 import javafx.collections.FXCollections;
 
-import org.apache.commons.math3.complex.Complex;
-import org.apache.commons.math3.util.MathArrays;
-
 import jp.ac.kyoto_u.kuis.le4music.Le4MusicUtils;
 import jp.ac.kyoto_u.kuis.le4music.LineChartWithSpectrogram;
 
@@ -50,43 +46,18 @@ public final class RecogChord extends Application {
         final double sampleRate = format.getSampleRate();
         stream.close();
         
-        /* 窓関数とFFTのサンプル数 */
-        final int frameSize = (int)Math.round(frameDuration * sampleRate);
-        final int fftSize = 1 << Le4MusicUtils.nextPow2(frameSize);
-        final int fftSize2 = (fftSize >> 1) + 1;
-        
-        /* シフトのサンプル数 */
-        final int shiftSize = (int)Math.round(shiftDuration * sampleRate);
-        
-        /* 窓関数を求め正規化する */
-        final double[] window = MathArrays.normalizeArray(
-            Arrays.copyOf(Le4MusicUtils.hanning(frameSize), fftSize), 1.0
-        );
-        
-        /* 短時間フーリエ変換本体 */
-        final Stream<Complex[]> spectrogram =
-                Le4MusicUtils.sliding(waveform, window, shiftSize)
-                             .map(frame -> Le4MusicUtils.rfft(frame));
-        
-        /* 複素スペクトログラムを対数振幅スペクトログラムに */
-        final double[][] specLog =
-                spectrogram.map(sp -> Arrays.stream(sp)
-                                            .mapToDouble(c -> c.abs())
-                                            .toArray())
-                           .toArray(n -> new double[n][]);
+        /* 短時間フーリエ変換本体 (RealFFT で振幅スペクトルを直接求める) */
+        final FeaturePipeline pipeline =
+                new FeaturePipeline(sampleRate, frameDuration, shiftDuration);
+        final double[][] specAbs = pipeline.process(waveform);
         
         // クロマベクトル
-        double[][] chromaVec = new double[specLog.length][17];
-        for(int i = 0; i < specLog.length; i++){
-            for(int j = 0; j < 17; j++){
-                if(j < 12){
-                    chromaVec[i][j] = -0.15 / chromaPower(specLog[i], j, sampleRate * 0.5, fftSize2);
-                    if(chromaVec[i][j] == 0) chromaVec[i][j] = Integer.MIN_VALUE;
-                }else{
-                    chromaVec[i][j] = 0;
-                }
-            }
-        }
+        // (音名ごとのビンの表は ChromaExtractor が一度だけ作る)
+        final ChromaExtractor chroma = ChromaExtractor.of(pipeline.getNyquist(), pipeline.getFFTSize2());
+        // (フレームごとに並列に求める。並列度は FeaturePipeline と同じ)
+        double[][] chromaVec = new double[specAbs.length][17];
+        FrameParallel.forEach(specAbs.length, pipeline.getParallelism(),
+                              (none, i) -> chroma.chromaVector(specAbs[i], chromaVec[i]));
         
         // 和音らしさ
         // like_chord[i][j] : フレーム i の和音 j らしさ
@@ -129,7 +100,7 @@ public final class RecogChord extends Application {
         /*final NumberAxis xAxis = new NumberAxis();
         xAxis.setLabel("Time (seconds)");
         xAxis.setLowerBound(0.0);
-        xAxis.setUpperBound(specLog.length * shiftDuration);
+        xAxis.setUpperBound(specAbs.length * shiftDuration);
         
         // Y軸を作成 
         final NumberAxis yAxis = new NumberAxis();
@@ -215,32 +186,4 @@ public final class RecogChord extends Application {
         }
         return argmax;
     }
-    
-    // 各音名のパワーを求める
-    // toneName は 0 〜 12 で C, C#, ... B に対応
-    public double chromaPower(double[] spec, int toneName, double nyquist, int fftSize){
-        double halfhalftone = Math.pow(2.0, 1.0/30.0);
-        double powerSum = 0;
-        /*double[] toneFreq = {261.63, 277.18, 293.66, 311.13, 329.63, 349.23,
-                             369.99, 392.00, 415.30, 440.00, 466.16, 493.88};*/
-        double[] toneFreq = new double[12];
-        for(int i = 0; i < 12 ; i++){
-            toneFreq[i] = n_to_f(60+i);
-        }
-        
-        double[] baseFreq = new double[5];
-        int div = 1;
-        for(int i = 0; i <= 4; i++){
-            baseFreq[i] = toneFreq[toneName] * Math.pow(2.0, (double)(i-2));
-            for(int j = 0; j < spec.length; j++){
-                double frameFreq = spec[j];
-                if(freq(nyquist, fftSize, j) >= baseFreq[i] / halfhalftone
-                        && freq(nyquist, fftSize, j) <= baseFreq[i] * halfhalftone){
-                    powerSum += frameFreq;
-                    div++;
-                }
-            }
-        }
-        return powerSum / div;
-    }
 }
\ No newline at end of file
@@ -2,9 +2,8 @@ import java.lang.invoke.MethodHandles;
 import java.io.File;
 import java.util.Arrays;
 import java.util.Optional;
+import java.util.concurrent.Executor;
 import java.util.stream.IntStream;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 import javax.sound.sampled.AudioSystem;
 
 import javafx.application.Application;
@@ -25,7 +24,6 @@ import org.apache.commons.cli.DefaultParser;
 import org.apache.commons.cli.Options;
 import org.apache.commons.cli.HelpFormatter;
 
-import org.apache.commons.math3.complex.Complex;
 import org.apache.commons.math3.util.MathArrays;
 
 import jp.ac.kyoto_u.kuis.le4music.Le4MusicUtils;
@@ -75,6 +73,15 @@ public final class RecordMonitorSpectrogramTest extends Application {
                       "Lower bound of frequency [Hz] (Default: 0.0)");
     options.addOption(null, "freq-up", true,
                       "Upper bound of frequency [Hz] (Default: Nyquist)");
+    options.addOption(null, "latency", false,
+                      "Measure the latency from the recorder callback to each stage, " +
+                      "show it under the note name and print it on exit");
+    options.addOption(null, "drop-policy", true,
+                      "What to do when analysis falls behind: " +
+                      "drop-oldest, drop-newest or latest-only (Default: drop-oldest)");
+    options.addOption(null, "queue", true,
+                      "Number of frames waiting for analysis " +
+                      "(Default: " + AnalysisDispatcher.DEFAULT_CAPACITY + ")");
   }
 
   @Override /* Application */
@@ -167,9 +174,17 @@ public final class RecordMonitorSpectrogramTest extends Application {
     // スペクトログラム作成
     ////////////////////////////////////////////////////////////////////////////
 
-    /* データ処理スレッド */
-    final ExecutorService executor = Executors.newSingleThreadExecutor();
-    final ExecutorService executor2 = Executors.newSingleThreadExecutor();
+    /* データ処理スレッド (解析が間に合わないときは dropPolicy に従ってフレームを捨てる) */
+    final AnalysisDispatcher.DropPolicy dropPolicy =
+      Optional.ofNullable(cmd.getOptionValue("drop-policy"))
+        .map(AnalysisDispatcher.DropPolicy::parse)
+        .orElse(AnalysisDispatcher.DropPolicy.DROP_OLDEST);
+    final int queueCapacity =
+      Optional.ofNullable(cmd.getOptionValue("queue"))
+        .map(Integer::parseInt)
+        .orElse(AnalysisDispatcher.DEFAULT_CAPACITY);
+    final AnalysisDispatcher executor = new AnalysisDispatcher(queueCapacity, dropPolicy);
+    final AnalysisDispatcher executor2 = new AnalysisDispatcher(queueCapacity, dropPolicy);
 
     /* 窓関数とFFTのサンプル数 */
     final int fftSize = 1 << Le4MusicUtils.nextPow2(player.getFrameSize());
@@ -234,7 +249,13 @@ public final class RecordMonitorSpectrogramTest extends Application {
     primaryStage.setScene(scene);
     primaryStage.setTitle(getClass().getName());
     /* ウインドウを閉じたときに他スレッドも停止させる */
-    primaryStage.setOnCloseRequest(req -> executor.shutdown());
+    primaryStage.setOnCloseRequest(req -> {
+      if (verbose) {
+        System.out.println("player:   " + executor);
+        System.out.println("recorder: " + executor2);
+      }
+      executor.shutdown();
+    });
     primaryStage.show();
     Platform.setImplicitExit(true);
     
@@ -242,49 +263,25 @@ public final class RecordMonitorSpectrogramTest extends Application {
     // マイク入力から Waveform 作成
     ////////////////////////////////////////////////////////////////////////////
 
-    /* データ系列を作成 */
-    final ObservableList<XYChart.Data<Number, Number>> data =
-      IntStream.range(0, recorder.getFrameSize())
-        .mapToObj(i -> new XYChart.Data<Number, Number>(i / recorder.getSampleRate(), 0.0))
-        .collect(Collectors.toCollection(FXCollections::observableArrayList));
-
-    /* データ系列に名前をつける */
-    final XYChart.Series<Number, Number> series =
-      new XYChart.Series<>("Waveform", data);
-
-    /* 軸を作成 */
-    final NumberAxis xAxis2 = new NumberAxis(
-      /* axisLabel  = */ "Time (seconds)",
-      /* lowerBound = */ -frameDuration,
-      /* upperBound = */ 0.0,
-      /* tickUnit   = */ Le4MusicUtils.autoTickUnit(frameDuration)
-    );
+    /* 波形表示 (サンプルを Canvas に直接描く) */
     final double ampBounds =
       Optional.ofNullable(cmd.getOptionValue("amp-bounds"))
         .map(Double::parseDouble)
         .orElse(Le4MusicUtils.waveformAmplitudeBounds);
-    final NumberAxis yAxis2 = new NumberAxis(
-      /* axisLabel  = */ "Amplitude",
-      /* lowerBound = */ -ampBounds,
-      /* upperBound = */ +ampBounds,
-      /* tickUnit   = */ Le4MusicUtils.autoTickUnit(ampBounds * 2.0)
-    );
-
-    /* チャートを作成 */
-    final LineChart<Number, Number> chart = new LineChart<>(xAxis2, yAxis2);
-    chart.setTitle("Waveform");
-    chart.setCreateSymbols(false);
-    chart.setLegendVisible(false);
-    chart.setAnimated(false);
-    chart.getData().add(series);
+    final WaveformCanvas waveform_mic =
+      new WaveformCanvas(recorder.getFrameSize(), recorder.getSampleRate(), ampBounds);
 
     /* 描画ウインドウ作成 */
-    final Scene scene2  = new Scene(chart, 800, 600);
+    final Scene scene2  = new Scene(waveform_mic, 800, 600);
     scene2.getStylesheets().add("le4music.css");
     secondaryStage.setScene(scene2);
     secondaryStage.setTitle(getClass().getName());
-    secondaryStage.setOnCloseRequest(req -> executor2.shutdown());
+    secondaryStage.setOnCloseRequest(req -> {
+      waveform_mic.stop();
+      executor2.shutdown();
+    });
     secondaryStage.show();
+    waveform_mic.start();
     
     ////////////////////////////////////////////////////////////////////////////
     // マイク入力から 基本周波数を表示するLineChart 作成
@@ -312,6 +309,10 @@ public final class RecordMonitorSpectrogramTest extends Application {
       IntStream.range(0, 500)
         .mapToObj(i -> new XYChart.Data<Number, Number>(i / recorder.getSampleRate(), 0.0))
         .collect(Collectors.toCollection(FXCollections::observableArrayList));
+
+    // 基本周波数の履歴 (録音スレッドが書き込み、パルスごとに data_mic へ反映する)
+    final SeriesRingBuffer ring_mic = new SeriesRingBuffer(data_mic.size());
+    final SeriesRenderer renderer_mic = new SeriesRenderer(ring_mic, data_mic);
     
     // データ系列に名前をつける
     final XYChart.Series<Number, Number> series_mic =
@@ -346,8 +347,12 @@ public final class RecordMonitorSpectrogramTest extends Application {
     scene_mic.getStylesheets().add("le4music.css");
     micInputStage.setScene(scene_mic);
     micInputStage.setTitle(getClass().getName());
-    micInputStage.setOnCloseRequest(req -> executor2.shutdown());
+    micInputStage.setOnCloseRequest(req -> {
+      renderer_mic.stop();
+      executor2.shutdown();
+    });
     micInputStage.show();
+    renderer_mic.start();
     
     ////////////////////////////////////////////////////////////////////////////
     // マイク入力から 入力された音階を出力するスペクトログラム(?) 作成
@@ -388,8 +393,18 @@ public final class RecordMonitorSpectrogramTest extends Application {
     notes.setFont(Font.font(null, 40));
     root.getChildren().addAll(notes, chart_micSgram);
     
+    // --latency : 段階ごとの遅延を測り、音階表示部に表示する (終了時には標準出力に書き出す)
+    final LatencyMonitor latency = cmd.hasOption("latency") ? new LatencyMonitor() : null;
+    if(latency != null){
+      final Text latencyText = new Text();
+      latencyText.setFont(Font.font("Monospaced", 12));
+      root.getChildren().add(latencyText);
+      latency.overlay(latencyText).start();
+      Runtime.getRuntime().addShutdownHook(new Thread(() -> System.out.print(latency.summary())));
+    }
+    
     // グラフ描画
-    final Scene scene_micS = new Scene(root, 800, 500);    
+    final Scene scene_micS = new Scene(root, 800, latency != null ? 600 : 500);    
     scene_micS.getStylesheets().add("le4music.css");
     micSgramStage.setScene(scene_micS);
     micSgramStage.setTitle(getClass().getName());
@@ -400,67 +415,81 @@ public final class RecordMonitorSpectrogramTest extends Application {
     ////////////////////////////////////////////////////////////////////////////
     ////////////////////////////////////////////////////////////////////////////
 
+    // 解析結果の描画 (チャート・軸・Text はパルスごとに JavaFX アプリケーションスレッドで書き換える)
+    final RenderPump<Runnable> pump = new RenderPump<>(Runnable::run);
+    pump.start();
+
+    /* 振幅スペクトル (FFT の作業領域はフレーム間で使い回す) */
+    final IncrementalSpectrum stft =
+      new IncrementalSpectrum(window, fftSize, null, (int)Math.round(interval * player.getSampleRate()));
+
     // オンライン処理
     player.addAudioFrameListener((frame, position) -> executor.execute(() -> {
-      final double[] wframe = MathArrays.ebeMultiply(frame, window);
-      final Complex[] spectrum = Le4MusicUtils.rfft(Arrays.copyOf(wframe, fftSize));
+      final double[] specLog = new double[fftSize2];
+      stft.update(frame, position, specLog);
+      for(int i = 0; i < fftSize2; i++)
+        specLog[i] = 20.0 * Math.log10(specLog[i]);
       final double posInSec = position / player.getSampleRate();
 
-      /* スペクトログラム描画 */
-      chart_sgram.addSpectrum(spectrum);
+      pump.post(() -> {
+        /* スペクトログラム描画 */
+        chart_sgram.addSpecLog(specLog);
 
-      /* 軸を更新 */
-      xAxis.setUpperBound(posInSec);
-      xAxis.setLowerBound(posInSec - duration);
+        /* 軸を更新 */
+        xAxis.setUpperBound(posInSec);
+        xAxis.setLowerBound(posInSec - duration);
+      });
     }));
     
-    recorder.addAudioFrameListener((frame, position) -> executor2.execute(() -> {
-      final double[] wframe = MathArrays.ebeMultiply(frame, window);
-      final Complex[] spectrum = Le4MusicUtils.rfft(Arrays.copyOf(wframe, fftSize));
+    // マイク入力の音高推定 (各候補の倍音のビンの表は起動時に一度だけ作る)
+    final SHSEngine shs_mic = SHSEngine.of(recorder.getNyquist(), fftSize_mic2, fftSize_mic2, 36, 360);
+    
+    // マイク入力の振幅スペクトル (SHS に使うビンだけを求める)
+    // フレームの間隔が短ければスライディング DFT で前のフレームの値を更新する
+    final IncrementalSpectrum stft_mic = new IncrementalSpectrum(
+      window_mic, fftSize_mic,
+      shs_mic.distinctBins(),
+      (int)Math.round(interval * recorder.getSampleRate())
+    );
+    final double[] specAbs_mic = new double[fftSize_mic2];
+
+    // --latency なら、コールバックの時刻を起点として解析に渡す (捨てたフレームも数える)
+    final Executor analysis = latency != null ? latency.timed(executor2) : executor2;
+
+    recorder.addAudioFrameListener((frame, position) -> analysis.execute(() -> {
+      final long callback = latency != null ? latency.start() : 0;
       final double posInSec = position / recorder.getSampleRate();
       
-      double[] specAbs = new double[spectrum.length];
-      for(int i = 0; i < spectrum.length; i++){
-        specAbs[i] = spectrum[i].abs();
-      }
+      // 振幅スペクトル
+      stft_mic.update(frame, position, specAbs_mic);
+      if(latency != null) latency.record(LatencyMonitor.Stage.FFT, callback);
       // 基本周波数
       double ff = calcFF(frame, recorder.getSampleRate());
       if(Math.abs(ff - 1600) < 0.01) ff = 0;
       
       // ノートナンバー
-      double[] nn_mic = calcNoteNumberFromMic(recorder.getNyquist(), fftSize_mic2,
-                                                specAbs);
+      double[] nn_mic = calcNoteNumberFromMic(shs_mic, specAbs_mic);
+      if(latency != null) latency.record(LatencyMonitor.Stage.PITCH, callback);
       
       // 基本周波数 データ更新
-      if(position / 320 < 500){
-        data_mic.get((int)Math.round(position / 320)).setXValue(posInSec);
-        data_mic.get((int)Math.round(position / 320)).setYValue(ff);
-      }else{
-        for(int i = 0; i < 500 - 1; i++){
-          data_mic.get(i).setXValue(data_mic.get(i+1).getXValue());
-          data_mic.get(i).setYValue(data_mic.get(i+1).getYValue());
-        }
-        data_mic.get(499).setXValue(posInSec);
-        data_mic.get(499).setYValue(ff);
-      }
-      
-      // チャート & 音階表示部更新
-      chart_micSgram.addSpecAbs(nn_mic);
-      notes.setText("   Note Name: " + setNoteName(nn_mic));
+      ring_mic.add(posInSec, ff);
       
       // waveform データ更新
-      IntStream.range(0, recorder.getFrameSize()).forEach(i -> {
-        data.get(i).setXValue((i + position) / recorder.getSampleRate());
-        data.get(i).setYValue(frame[i]);
-      });
-      xAxis2.setLowerBound(position / recorder.getSampleRate());
-      xAxis2.setUpperBound((position + recorder.getFrameSize()) / recorder.getSampleRate());
+      waveform_mic.setWaveform(frame, posInSec);
       
-      // 軸を更新
-      xAxis_mic.setUpperBound(posInSec);
-      xAxis_mic.setLowerBound(posInSec - duration);
-      xAxis_micS.setUpperBound(posInSec);
-      xAxis_micS.setLowerBound(posInSec - duration);
+      final String noteName = setNoteName(nn_mic);
+      pump.post(() -> {
+        // チャート & 音階表示部更新
+        chart_micSgram.addSpecAbs(nn_mic);
+        notes.setText("   Note Name: " + noteName);
+        
+        // 軸を更新
+        xAxis_mic.setUpperBound(posInSec);
+        xAxis_mic.setLowerBound(posInSec - duration);
+        xAxis_micS.setUpperBound(posInSec);
+        xAxis_micS.setLowerBound(posInSec - duration);
+        if(latency != null) latency.record(LatencyMonitor.Stage.RENDER, callback);
+      });
     }));
 
     /* 録音開始 */
@@ -469,36 +498,33 @@ public final class RecordMonitorSpectrogramTest extends Application {
   }
   
   // 基本周波数を求める
+  // 自己相関は PitchTracker により FFT で求める (振幅 0.04 未満は 0 とみなす)
+  // 作業領域はフレーム間で使い回す (calcFF はデータ処理スレッドからのみ呼ばれる)
+  private PitchTracker ffTracker;
   public double calcFF(double[] frame, double sampleRate){
-    double fundFreq;
-    double[] autocor = new double[frame.length-11];
-    Arrays.fill(autocor, 0);
+    if(ffTracker == null || ffTracker.getMaxLag() != frame.length - 2)
+      ffTracker = new PitchTracker(frame.length - 1, 10, frame.length - 2, 0.04);
     
-    for(int tau = 10; tau < frame.length-1; tau++){
-      for(int t = 0; t < frame.length - tau - 1; t++){
-        double wf_0 = frame[t], wf_1 = frame[t + tau];
-        if(frame[t] < 0.04 || frame[t + tau] < 0.04)
-          wf_0 = 0;
-        autocor[tau-10] += wf_0 * wf_1;
-      }
-    }
-    
-    return sampleRate / (argmax(autocor) + 10.0);
+    return sampleRate / ffTracker.argmaxLag(frame, 0, frame.length - 1);
   }
   
   // マイク入力の音声のノートナンバーを求める
   // Note Number = 36 + 0.1 * i
   // i = 10 * (Note Number - 36);  
-  public double[] calcNoteNumberFromMic(double nyquist,
-                                             int fftSize,
+  // SHS の値の作業領域はフレーム間で使い回す (calcNoteNumberFromMic はデータ処理スレッドからのみ呼ばれる)
+  // 戻り値は描画に渡すのでフレームごとに作る
+  private double[] shsScores;
+  public double[] calcNoteNumberFromMic(SHSEngine shs,
                                              double[] specAbs){
-    double[] nn_mic = new double[360];
-    Arrays.fill(nn_mic, 0);
+    double[] nn_mic = new double[shs.candidates()];
     
-    final int N = 36;
-    double[] fundFreq = new double[360];
-    for(int i = 0; i < 360; i++){
-      fundFreq[i] = melo_SHS(specAbs, N + i * 0.1, nyquist, fftSize);
+    // SHSEngine の値のうち、0.005 未満の値は 0 とする
+    if(shsScores == null || shsScores.length != shs.candidates())
+      shsScores = new double[shs.candidates()];
+    final double[] fundFreq = shsScores;
+    shs.scores(specAbs, fundFreq);
+    for(int i = 0; i < fundFreq.length; i++){
+      if(fundFreq[i] < 0.005) fundFreq[i] = 0;
     }
     
     if(Math.abs(fundFreq[(int)argmax(fundFreq)]) >= 0.005)
@@ -506,28 +532,6 @@ public final class RecordMonitorSpectrogramTest extends Application {
     return nn_mic;
   }
   
-  // SHSによりメロディの音高を推定
-  public double melo_SHS(double[] spec, double toneNum,
-                          double nyquist, int fftSize){
-    int N = 5;  // 第 (N-1) 倍音までとる
-    double candFreq = n_to_f(toneNum);
-    double powerSum = 0;
-    
-    for(int i = 0; i < spec.length; i++){
-      for(int j = 1; j <= N; j++){
-        if(Math.abs(candFreq * j - freq(nyquist, fftSize, i)) < 10){
-          powerSum += spec[i];
-        }
-      };
-    }
-    
-    if(Math.abs(powerSum) < 0.005){
-      powerSum = 0;
-    }
-        
-    return Math.abs(powerSum);
-  }
-  
   // 音高の入った配列からノートネームを出力
   public String setNoteName(double[] nn_mic){
     final String[] noteNameArr = {"C", "C#", "D", "D#", "E", "F",
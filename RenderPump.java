@@ -0,0 +1,58 @@
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+import javafx.animation.AnimationTimer;
+
+// 解析スレッドの結果を JavaFX アプリケーションスレッドで画面に反映する
+// post で結果を容量 capacity のキューに入れておき、JavaFX のパルス (画面の更新) ごとに
+// たまっている結果を古い順に sink に渡す。チャートや軸、Text はすべて sink の中
+// (JavaFX アプリケーションスレッド) で書き換えること。
+// 1 回のパルスで書き換えた分は、まとめて 1 回だけレイアウト・描画される。
+//
+// 描画が追いつかずキューがいっぱいになったら、一番古い結果を捨てる。
+// そのため画面の遅れは capacity 個の結果の分までで、音声からどんどん遅れていくことはない。
+public final class RenderPump<T> extends AnimationTimer {
+
+    // キューの容量の既定値 (10 ms ごとの結果で 1 パルス分の数倍)
+    public static final int DEFAULT_CAPACITY = 16;
+
+    private final ArrayBlockingQueue<T> queue;
+    private final Consumer<? super T> sink;
+    private final AtomicLong posted = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+
+    public RenderPump(Consumer<? super T> sink){
+        this(DEFAULT_CAPACITY, sink);
+    }
+
+    public RenderPump(int capacity, Consumer<? super T> sink){
+        if(capacity < 1)
+            throw new IllegalArgumentException("capacity must be positive: " + capacity);
+        this.queue = new ArrayBlockingQueue<>(capacity);
+        this.sink = sink;
+    }
+
+    // 結果を渡す (どのスレッドから呼んでもよい、待つことはない)
+    public void post(T result){
+        posted.incrementAndGet();
+        while(!queue.offer(result)){
+            if(queue.poll() != null) dropped.incrementAndGet();
+        }
+    }
+
+    @Override public void handle(long now){
+        // このパルスの間に post されたものは次のパルスに回す
+        for(int n = queue.size(); n > 0; n--){
+            final T result = queue.poll();
+            if(result == null) break;
+            sink.accept(result);
+        }
+    }
+
+    // post された結果の数
+    public long getPosted(){ return posted.get(); }
+
+    // 描画せずに捨てた結果の数
+    public long getDropped(){ return dropped.get(); }
+}
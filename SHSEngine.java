@@ -0,0 +1,97 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+// 調波構造の総和 (SHS) による音高推定
+// 候補 j のノートナンバーは lowestNote + j * 0.1 とし、その第 1 〜 5 倍音の周波数の
+// ±10 Hz に入る周波数ビンの表を (ナイキスト周波数, FFT 長, スペクトル長, 候補集合) ごとに
+// 一度だけ作る。各フレームは候補ごとに表にあるビンの振幅を足し合わせるだけで済む。
+// 候補ごとにスペクトル全体 × 倍音を走査する従来の SHS と同じ値になる。
+public final class SHSEngine {
+
+    // 第 HARMONICS 倍音までとる
+    public static final int HARMONICS = 5;
+    // 倍音の周波数からの許容幅 (Hz)
+    public static final double WINDOW = 10.0;
+    // 候補のノートナンバーの刻み
+    public static final double STEP = 0.1;
+
+    private static final ConcurrentHashMap<String, SHSEngine> tables = new ConcurrentHashMap<>();
+
+    // 表を返す (一度作った表は使い回す)
+    // fftSize はビンの周波数 nyquist / fftSize * i に使う値
+    public static SHSEngine of(double nyquist, int fftSize, int specLength,
+                               double lowestNote, int candidates){
+        return tables.computeIfAbsent(
+            nyquist + ":" + fftSize + ":" + specLength + ":" + lowestNote + ":" + candidates,
+            key -> new SHSEngine(nyquist, fftSize, specLength, lowestNote, candidates)
+        );
+    }
+
+    private final double lowestNote;
+    private final int specLength;
+    private final int[] start;      // 候補 j のビンは bins[start[j] .. start[j + 1])
+    private final int[] bins;       // 周波数ビン
+
+    private SHSEngine(double nyquist, int fftSize, int specLength,
+                      double lowestNote, int candidates){
+        this.lowestNote = lowestNote;
+        this.specLength = specLength;
+        this.start = new int[candidates + 1];
+
+        // 従来の SHS と同じ順 (ビン → 倍音) で足し合わせるビンを集める
+        // 探索範囲は第 1 倍音の窓の下端から第 HARMONICS 倍音の窓の上端まで
+        final double df = nyquist / fftSize;
+        final List<Integer> list = new ArrayList<>();
+        for(int j = 0; j < candidates; j++){
+            final double candFreq = 440 * Math.pow(2, ((note(j) - 69) / 12));
+            final int from = Math.max(0, (int)Math.floor((candFreq - WINDOW) / df) - 1);
+            final int to = Math.min(specLength - 1,
+                                    (int)Math.ceil((candFreq * HARMONICS + WINDOW) / df) + 1);
+            for(int i = from; i <= to; i++){
+                for(int h = 1; h <= HARMONICS; h++){
+                    if(Math.abs(candFreq * h - nyquist / fftSize * i) < WINDOW){
+                        list.add(i);
+                    }
+                }
+            }
+            start[j + 1] = list.size();
+        }
+        this.bins = list.stream().mapToInt(Integer::intValue).toArray();
+    }
+
+    // 候補 j の SHS の値
+    public double score(double[] spec, int j){
+        double powerSum = 0;
+        for(int k = start[j]; k < start[j + 1]; k++){
+            powerSum += spec[bins[k]];
+        }
+        return Math.abs(powerSum);
+    }
+
+    // 全候補の SHS の値を scores[0 .. candidates) に書き込む
+    public void scores(double[] spec, double[] scores){
+        if(spec.length != specLength)
+            throw new IllegalArgumentException(
+                "spectrum length is " + spec.length + ", expected " + specLength
+            );
+        for(int j = 0; j < candidates(); j++){
+            scores[j] = score(spec, j);
+        }
+    }
+
+    // 候補 j のノートナンバー
+    public double note(int j){ return lowestNote + j * STEP; }
+
+    public int candidates(){ return start.length - 1; }
+
+    // 表にあるビンの総数 (1 フレームあたりの加算回数)
+    public int size(){ return bins.length; }
+
+    // 表に現れるビン (重複なし、昇順)
+    // SHS の値を求めるのに必要なのは、スペクトルのうちこのビンだけ
+    public int[] distinctBins(){
+        return Arrays.stream(bins).distinct().sorted().toArray();
+    }
+}
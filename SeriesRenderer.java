@@ -0,0 +1,42 @@
+import javafx.animation.AnimationTimer;
+import javafx.collections.ObservableList;
+import javafx.scene.chart.XYChart;
+
+// SeriesRingBuffer の内容を XYChart のデータ系列に反映する
+// JavaFX のパルス (画面の更新, 60 fps 程度) ごとに JavaFX アプリケーションスレッドで呼ばれ、
+// 前回から点が増えていればスナップショットをとって data の先頭から順に書き込む。
+// 音声スレッドはリングバッファに書くだけで、XYChart.Data には触れない。
+//
+// data の点の数はリングバッファの容量と同じにしておくこと
+// (まだ書き込まれていない分の点はそのまま残る)。
+public final class SeriesRenderer extends AnimationTimer {
+
+    private final SeriesRingBuffer ring;
+    private final ObservableList<XYChart.Data<Number, Number>> data;
+    private final double[] times;
+    private final double[] values;
+    private long drawn = -1;    // 最後に描画したときの ring.count()
+
+    public SeriesRenderer(SeriesRingBuffer ring, ObservableList<XYChart.Data<Number, Number>> data){
+        if(data.size() < ring.capacity())
+            throw new IllegalArgumentException(
+                "data has fewer points than the ring buffer: " + data.size() + " < " + ring.capacity()
+            );
+        this.ring = ring;
+        this.data = data;
+        this.times = new double[ring.capacity()];
+        this.values = new double[ring.capacity()];
+    }
+
+    @Override public void handle(long now){
+        final long count = ring.count();
+        if(count == drawn) return;
+        drawn = count;
+        final int n = ring.snapshot(times, values);
+        for(int i = 0; i < n; i++){
+            final XYChart.Data<Number, Number> d = data.get(i);
+            d.setXValue(times[i]);
+            d.setYValue(values[i]);
+        }
+    }
+}
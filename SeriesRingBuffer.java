@@ -0,0 +1,63 @@
+import java.util.concurrent.locks.StampedLock;
+
+// 時刻と値の組 (基本周波数の推移など) を直近 capacity 個だけ保持するリングバッファ
+// 音声スレッドが add で 1 フレームに 1 点ずつ書き込み、描画側 (JavaFX アプリケーションスレッド) が
+// snapshot で直近の点を古い順に取り出す。add は配列の 1 箇所に書くだけなので、
+// 保持する点の数によらず O(1) で済む (XYChart.Data を 1 つずつずらす必要がない)。
+//
+// 書き込みは 1 スレッドだけから行うこと。
+// 読み出しは StampedLock の楽観的読み出し (シーケンスロック) で行う。書き込み側と読み出し側が
+// 互いを待つことはなく、読み出し中に書き込まれたときは読み直すので、常に一貫した点列が得られる。
+public final class SeriesRingBuffer {
+
+    private final double[] times;
+    private final double[] values;
+    private final StampedLock seq = new StampedLock();
+    private volatile long count = 0;    // これまでに書き込んだ点の数
+
+    public SeriesRingBuffer(int capacity){
+        if(capacity < 1)
+            throw new IllegalArgumentException("capacity must be positive: " + capacity);
+        this.times = new double[capacity];
+        this.values = new double[capacity];
+    }
+
+    // 点 (time, value) を加える (いっぱいなら一番古い点を上書きする)
+    public void add(double time, double value){
+        final long stamp = seq.writeLock();   // 書き込みは 1 スレッドだけなので待つことはない
+        try {
+            final int head = (int)(count % times.length);
+            times[head] = time;
+            values[head] = value;
+            count = count + 1;
+        } finally {
+            seq.unlockWrite(stamp);
+        }
+    }
+
+    // 直近の点を古い順に time[0 ..), value[0 ..) に書き込み、その数を返す
+    // time, value の長さは capacity 以上であること
+    public int snapshot(double[] time, double[] value){
+        while(true){
+            final long stamp = seq.tryOptimisticRead();
+            final long end = count;
+            final int n = (int)Math.min(end, times.length);
+            final int head = (int)(end % times.length);   // 一番古い点 (いっぱいのとき)
+            if(n < times.length){
+                System.arraycopy(times, 0, time, 0, n);
+                System.arraycopy(values, 0, value, 0, n);
+            }else{
+                System.arraycopy(times, head, time, 0, n - head);
+                System.arraycopy(times, 0, time, n - head, head);
+                System.arraycopy(values, head, value, 0, n - head);
+                System.arraycopy(values, 0, value, n - head, head);
+            }
+            if(seq.validate(stamp)) return n;
+        }
+    }
+
+    // これまでに書き込んだ点の数 (描画側が更新の有無を調べるのに使う)
+    public long count(){ return count; }
+
+    public int capacity(){ return times.length; }
+}
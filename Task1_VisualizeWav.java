@@ -2,9 +2,7 @@ import java.lang.invoke.MethodHandles;
 import java.io.File;
 import java.util.Arrays;
 import java.util.Optional;
-import java.util.stream.Stream;
 import java.util.stream.Collectors;
-import java.util.stream.Stream;
 import java.util.stream.IntStream;
 import javax.sound.sampled.AudioSystem;
 import javax.sound.sampled.AudioFormat;
@@ -30,9 +28,6 @@ import org.apache.commons.cli.DefaultParser;
 import org.apache.commons.cli.Options;
 import org.apache.commons.cli.HelpFormatter;
 
-import org.apache.commons.math3.complex.Complex;
-import org.apache.commons.math3.util.MathArrays;
-
 import jp.ac.kyoto_u.kuis.le4music.Le4MusicUtils;
 import jp.ac.kyoto_u.kuis.le4music.LineChartWithSpectrogram;
 
@@ -57,8 +52,21 @@ public final class Task1_VisualizeWav extends Application {
                           Le4MusicUtils.frameDuration + ")");
         options.addOption("s", "shift", true,
                           "Duration of shift [seconds] (Default: frame/8)");
+        options.addOption("b", "begin", true,
+                          "Beginning of the region to analyze [seconds] (Default: 0)");
+        options.addOption("e", "end", true,
+                          "End of the region to analyze [seconds] (Default: end of file)");
+        options.addOption("p", "parallelism", true,
+                          "Number of threads for frame analysis (Default: " +
+                          FrameParallel.defaultParallelism() + ")");
     }
     
+    // フレーム解析の並列度
+    private int parallelism = FrameParallel.defaultParallelism();
+    
+    // チャートの時間軸の始まり (秒, --begin のときはファイル中の区間の始まり)
+    private double begin = 0.0;
+    
     @Override public final void start(final Stage primaryStage)
         throws IOException,
                UnsupportedAudioFileException,
@@ -79,25 +87,62 @@ public final class Task1_VisualizeWav extends Application {
 	    return;
 	}
 	final File wavFile = new File(pargs[0]);
+        parallelism = Optional.ofNullable(cmd.getOptionValue("parallelism"))
+                              .map(Integer::parseInt)
+                              .orElse(parallelism);
+        if(parallelism < 1)
+            throw new IllegalArgumentException(
+                "parallelism must be positive: " + parallelism
+            );
         
         /* WAVファイル読み込み */
-        final AudioInputStream stream = AudioSystem.getAudioInputStream(wavFile);
-        final double[] waveform = Le4MusicUtils.readWaveformMonaural(stream);
-        final AudioFormat format = stream.getFormat();
-        final double sampleRate = format.getSampleRate();
+        // 区間 (--begin, --end) が指定されたときは、ファイルをメモリマップしてその区間だけを取り出す
+        final double[] waveform;
+        final double sampleRate;
+        if(cmd.hasOption("begin") || cmd.hasOption("end")){
+            try(MappedWaveform wav = MappedWaveform.open(wavFile)){
+                sampleRate = wav.getSampleRate();
+                begin = Optional.ofNullable(cmd.getOptionValue("begin"))
+                               .map(Double::parseDouble)
+                               .orElse(0.0);
+                final double end =
+                        Optional.ofNullable(cmd.getOptionValue("end"))
+                                .map(Double::parseDouble)
+                                .orElse(wav.getDuration());
+                if(begin < 0.0 || end <= begin)
+                    throw new IllegalArgumentException(
+                        "region is invalid: begin = " + begin + ", end = " + end
+                    );
+                waveform = wav.readSeconds(begin, end - begin);
+            }
+        }else{
+            final AudioInputStream stream = AudioSystem.getAudioInputStream(wavFile);
+            waveform = Le4MusicUtils.readWaveformMonaural(stream);
+            final AudioFormat format = stream.getFormat();
+            sampleRate = format.getSampleRate();
+            stream.close();
+        }
         final double nyquist = sampleRate * 0.5;
-        stream.close();
+        
+        /* 短時間フーリエ変換は一度だけ行い、各チャートで振幅スペクトログラムを共有する */
+        final FeaturePipeline pipeline =
+                new FeaturePipeline(sampleRate,
+                                    Le4MusicUtils.frameDuration,
+                                    Le4MusicUtils.frameDuration / 8.0);
+        pipeline.setParallelism(parallelism);
+        final double[][] specAbs = pipeline.process(waveform);
+        final double[][] chromaVec = makeChromaVector(sampleRate, pipeline.getFFTSize2(), specAbs);
         
         final LineChartWithSpectrogram<Number, Number> chart_sgram =
-                makeSpectrogramChart(cmd, sampleRate, nyquist, waveform);
+                makeSpectrogramChart(cmd, pipeline, specAbs, waveform);
         final LineChart<Number, Number> chart_ff =
                 makeFundFreqChart(cmd, sampleRate, nyquist, waveform);
         final LineChartWithSpectrogram<Number, Number> chart_chromagram =
-                makeChromagramChart(cmd, sampleRate, nyquist, waveform);
+                makeChromagramChart(cmd, sampleRate, nyquist, chromaVec);
         final LineChart<Number, Number> chart_chord =
-                makeChordChart(cmd, sampleRate, nyquist, waveform);
+                makeChordChart(cmd, sampleRate, nyquist, waveform, chromaVec);
         final LineChart<Number, Number> chart_melo =
-                makeMelodyChart(cmd, sampleRate, nyquist, waveform);
+                makeMelodyChart(cmd, pipeline, specAbs, waveform);
         
         // シーングラフ作成
         HBox root = new HBox();
@@ -137,45 +182,43 @@ public final class Task1_VisualizeWav extends Application {
     
     // スペクトログラム＆チャート作成
     public LineChartWithSpectrogram<Number, Number> makeSpectrogramChart(CommandLine cmd,
-                                                                     double sampleRate,
-                                                                     double nyquist,
+                                                                     FeaturePipeline pipeline,
+                                                                     double[][] specAbs,
                                                                      double[] waveform){
-        /* 窓関数とFFTのサンプル数 */
+        final double sampleRate = pipeline.getSampleRate();
+        final double nyquist = pipeline.getNyquist();
+        
+        /* 窓関数とシフトの長さ */
         final double frameDuration = 
                 Optional.ofNullable(cmd.getOptionValue("frame"))
                         .map(Double::parseDouble)
                         .orElse(Le4MusicUtils.frameDuration);
-        final int frameSize = (int)Math.round(frameDuration * sampleRate);
-        final int fftSize = 1 << Le4MusicUtils.nextPow2(frameSize);
-        final int fftSize2 = (fftSize >> 1) + 1;
-        
-        /* シフトのサンプル数 */
         final double shiftDuration =
                 Optional.ofNullable(cmd.getOptionValue("shift"))
                         .map(Double::parseDouble)
                         .orElse(Le4MusicUtils.frameDuration / 8);
-        final int shiftSize = (int)Math.round(shiftDuration * sampleRate);
         
-        /* 窓関数を求め正規化する */
-        final double[] window = MathArrays.normalizeArray(
-            Arrays.copyOf(Le4MusicUtils.hanning(frameSize), fftSize), 1.0
-        );
-        
-        /* 短時間フーリエ変換本体 */
-        final Stream<Complex[]> spectrogram =
-                Le4MusicUtils.sliding(waveform, window, shiftSize)
-                             .map(frame -> Le4MusicUtils.rfft(frame));
-        
-        /* 複素スペクトログラムを対数振幅スペクトログラムに */
+        /* フレーム長・シフト幅が共有のものと異なるときだけ改めて短時間フーリエ変換を行う */
+        final FeaturePipeline sgram =
+                (frameDuration == pipeline.getFrameDuration()
+                        && shiftDuration == pipeline.getShiftDuration())
+                ? pipeline
+                : new FeaturePipeline(sampleRate, frameDuration, shiftDuration);
+        sgram.setParallelism(parallelism);
+        final double[][] frames = (sgram == pipeline) ? specAbs : sgram.process(waveform);
+        final int fftSize2 = sgram.getFFTSize2();
+        
+        /* 振幅スペクトログラムを対数振幅スペクトログラムに */
         final double[][] specLog =
-                spectrogram.map(sp -> Arrays.stream(sp)
-                                            .mapToDouble(c -> 20.0 * Math.log10(c.abs()))
-                                            .toArray())
-                           .toArray(n -> new double[n][]);
+                Arrays.stream(frames)
+                      .map(sp -> Arrays.stream(sp)
+                                       .map(c -> 20.0 * Math.log10(c))
+                                       .toArray())
+                      .toArray(n -> new double[n][]);
         
         /* X軸を作成 */
         final double duration = (specLog.length - 1) * shiftDuration;
-        final NumberAxis xAxis = new NumberAxis("Time (seconds)", 0.0, duration,
+        final NumberAxis xAxis = new NumberAxis("Time (seconds)", begin, begin + duration,
                                                 Le4MusicUtils.autoTickUnit(duration)
         );
         xAxis.setAnimated(false);
@@ -212,36 +255,22 @@ public final class Task1_VisualizeWav extends Application {
         final int shiftSize = (int)Math.round(shiftDuration * sampleRate);  // 400 per sec
         
         /* 基本周波数計算 */
+        // 自己相関は PitchTracker により FFT で求める
+        // 小さい音ははじく (振幅 0.1 未満は 0 とみなす)
+        // フレームごとに並列に求める (PitchTracker はワーカーごとに作る)
         int shiftSum = (int)Math.round((waveform.length - frameSize) / shiftSize);
         double[] fundFreq = new double[shiftSum];
-        double[] ac = new double[shiftSum];
-        double ac_buf = 0;
-        for(int i = 0; i < shiftSum; i++){
-            ac_buf = 0;
-            for(int t = 10; t < (int)Math.round(frameSize-1); t++){
-                ac[i]=0;
-                for(int j = 0; j < frameSize - 1; j++){
-                    if(i * shiftSize + j + t >= waveform.length){
-                        ac[i] += 0;
-                    }else{
-                        double sig_0 = waveform[i * shiftSize + j];
-                        double sig_1 = waveform[i * shiftSize + j + t];
-                        
-                        // 小さい音ははじく
-                        if(sig_0 < 0.1 || sig_1 < 0.1) sig_0 = 0;
-                        ac[i] += sig_0 * sig_1;
-                    }
-                }
-                if(ac_buf < ac[i]){
-                    ac_buf = ac[i]; fundFreq[i] = sampleRate / t;
-                }
-            }
-        }
+        FrameParallel.forEach(shiftSum, parallelism,
+                              () -> new PitchTracker(frameSize - 1, 10, frameSize - 2, 0.1),
+                              (tracker, i) -> {
+                                  final int t = tracker.bestLag(waveform, i * shiftSize, waveform.length);
+                                  if(t > 0) fundFreq[i] = sampleRate / t;
+                              });
         
         /* データ系列を作成 */
         final ObservableList<XYChart.Data<Number, Number>> data =
                 IntStream.range(0, fundFreq.length)
-                    .mapToObj(i -> new XYChart.Data<Number, Number>(i / sampleRate * shiftSize, fundFreq[i]))
+                    .mapToObj(i -> new XYChart.Data<Number, Number>(begin + i / sampleRate * shiftSize, fundFreq[i]))
                     .collect(Collectors.toCollection(FXCollections::observableArrayList));
         
         /* データ系列に名前をつける */
@@ -249,7 +278,7 @@ public final class Task1_VisualizeWav extends Application {
         
         /* x軸を作成 */
         final double duration = (waveform.length - 1) / sampleRate;
-        final NumberAxis xAxis = new NumberAxis("Time (seconds)", 0.0, duration,
+        final NumberAxis xAxis = new NumberAxis("Time (seconds)", begin, begin + duration,
                                                 Le4MusicUtils.autoTickUnit(duration));
         xAxis.setAnimated(false);
         
@@ -288,17 +317,14 @@ public final class Task1_VisualizeWav extends Application {
     public LineChartWithSpectrogram<Number, Number> makeChromagramChart(CommandLine cmd,
                                                                            double sampleRate,
                                                                            double nyquist,
-                                                                           double[] waveform){
+                                                                           double[][] chromaVec){
         // 1フレームの長さ(sec)とフレームシフト幅(sec)
         final double frameDuration = Le4MusicUtils.frameDuration;   // 0.2
         final double shiftDuration = frameDuration / 8.0;           // 0.025
         
-        // クロマベクトル作成
-        double[][] chromaVec = makeChromaVector(sampleRate, waveform);
-        
         // X軸を作成 
         final double duration = (chromaVec.length - 1) * shiftDuration;
-        final NumberAxis xAxis = new NumberAxis("Time (seconds)", 0.0, duration,
+        final NumberAxis xAxis = new NumberAxis("Time (seconds)", begin, begin + duration,
                                                 Le4MusicUtils.autoTickUnit(duration));
         xAxis.setAnimated(false);
         
@@ -323,10 +349,8 @@ public final class Task1_VisualizeWav extends Application {
     public LineChart<Number, Number> makeChordChart(CommandLine cmd,
                                                       double sampleRate,
                                                       double nyquist,
-                                                      double[] waveform){
-        // クロマベクトル作成
-        double[][] chromaVec = makeChromaVector(sampleRate, waveform);
-        
+                                                      double[] waveform,
+                                                      double[][] chromaVec){
         // 和音らしさ
         // like_chord[i][j] : フレーム i の和音 j らしさ
         // 0 <= j <= 11 : C, C#, ... , B Maj
@@ -356,7 +380,7 @@ public final class Task1_VisualizeWav extends Application {
         // データ系列を作成 
         final ObservableList<XYChart.Data<Number, Number>> data =
                 IntStream.range(0, like_graph.length)
-                    .mapToObj(i -> new XYChart.Data<Number, Number>(i / sampleRate * 400, like_graph[i]))
+                    .mapToObj(i -> new XYChart.Data<Number, Number>(begin + i / sampleRate * 400, like_graph[i]))
                     .collect(Collectors.toCollection(FXCollections::observableArrayList));
         
         // データ系列に名前をつける 
@@ -364,7 +388,7 @@ public final class Task1_VisualizeWav extends Application {
         
         /* x軸を作成 */
         final double duration = (waveform.length - 1) / sampleRate;
-        final NumberAxis xAxis = new NumberAxis("Time (seconds)", 0.0, duration,
+        final NumberAxis xAxis = new NumberAxis("Time (seconds)", begin, begin + duration,
                                                 Le4MusicUtils.autoTickUnit(duration));
         xAxis.setAnimated(false);
         
@@ -384,86 +408,28 @@ public final class Task1_VisualizeWav extends Application {
     
     
     // クロマベクトル作成
+    // specAbs は FeaturePipeline で求めた共有の振幅スペクトログラム
     public double[][] makeChromaVector(double sampleRate,
-                                         double[] waveform){
-        // 1フレームの長さ(sec)とフレームシフト幅(sec)
-        final double frameDuration = Le4MusicUtils.frameDuration;   // 0.2
-        final double shiftDuration = frameDuration / 8.0;           // 0.025
-        
-        /* 窓関数とFFTのサンプル数 */
-        final int frameSize = (int)Math.round(frameDuration * sampleRate);
-        final int fftSize = 1 << Le4MusicUtils.nextPow2(frameSize);
-        final int fftSize2 = (fftSize >> 1) + 1;
-        
-        /* シフトのサンプル数 */
-        final int shiftSize = (int)Math.round(shiftDuration * sampleRate);
-        
-        /* 窓関数を求め正規化する */
-        final double[] window = MathArrays.normalizeArray(
-            Arrays.copyOf(Le4MusicUtils.hanning(frameSize), fftSize), 1.0
-        );
-        
-        /* 短時間フーリエ変換本体 */
-        final Stream<Complex[]> spectrogram =
-                Le4MusicUtils.sliding(waveform, window, shiftSize)
-                             .map(frame -> Le4MusicUtils.rfft(frame));
-        
-        /* 複素スペクトログラムを対数振幅スペクトログラムに */
-        final double[][] specLog =
-                spectrogram.map(sp -> Arrays.stream(sp)
-                                            .mapToDouble(c -> c.abs())
-                                            .toArray())
-                           .toArray(n -> new double[n][]);
-        
+                                         int fftSize2,
+                                         double[][] specAbs){
         // クロマベクトル
-        double[][] chromaVec = new double[specLog.length][17];
-        for(int i = 0; i < specLog.length; i++){
-            for(int j = 0; j < 17; j++){
-                if(j < 12){
-                    chromaVec[i][j] = -0.15 / chromaPower(specLog[i], j, sampleRate * 0.5, fftSize2);
-                    if(chromaVec[i][j] == 0) chromaVec[i][j] = Integer.MIN_VALUE;
-                }else{
-                    chromaVec[i][j] = 0;
-                }
-            }
-        }
+        // (音名ごとのビンの表は ChromaExtractor が一度だけ作る)
+        final ChromaExtractor chroma = ChromaExtractor.of(sampleRate * 0.5, fftSize2);
+        double[][] chromaVec = new double[specAbs.length][17];
+        FrameParallel.forEach(specAbs.length, parallelism,
+                              (none, i) -> chroma.chromaVector(specAbs[i], chromaVec[i]));
         
         return chromaVec;
     }
 
     // 認識したメロディ＆チャートの表示
     public LineChart<Number, Number> makeMelodyChart(CommandLine cmd,
-                                                      double sampleRate,
-                                                      double nyquist,
+                                                      FeaturePipeline pipeline,
+                                                      double[][] specAbs,
                                                       double[] waveform){
-        // 1フレームの長さ(sec)とフレームシフト幅(sec)
-        final double frameDuration = Le4MusicUtils.frameDuration;   // 0.2
-        final double shiftDuration = frameDuration / 8.0;           // 0.025
-        
-        // 窓関数とFFTのサンプル数 
-        final int frameSize = (int)Math.round(frameDuration * sampleRate);
-        final int fftSize = 1 << Le4MusicUtils.nextPow2(frameSize);
-        final int fftSize2 = (fftSize >> 1) + 1;
-        
-        // シフトのサンプル数 
-        final int shiftSize = (int)Math.round(shiftDuration * sampleRate);
-        
-        // 窓関数を求め正規化する 
-        final double[] window = MathArrays.normalizeArray(
-            Arrays.copyOf(Le4MusicUtils.hanning(frameSize), fftSize), 1.0
-        );
-        
-        // 短時間フーリエ変換本体 
-        final Stream<Complex[]> spectrogram =
-                Le4MusicUtils.sliding(waveform, window, shiftSize)
-                             .map(frame -> Le4MusicUtils.rfft(frame));
-        
-        // 複素スペクトログラムを対数振幅スペクトログラムに 
-        final double[][] specLog =
-                spectrogram.map(sp -> Arrays.stream(sp)
-                                            .mapToDouble(c -> c.abs())
-                                            .toArray())
-                           .toArray(n -> new double[n][]);
+        final double sampleRate = pipeline.getSampleRate();
+        final double nyquist = pipeline.getNyquist();
+        final int fftSize2 = pipeline.getFFTSize2();
         
         // 基本周波数の候補集合
         // 候補集合は3オクターブの範囲で設定
@@ -472,23 +438,22 @@ public final class Task1_VisualizeWav extends Application {
         // ノートナンバー = N + j * 0.1
         // j = 10 * (ノートナンバー - N)
         int N = 36;     // 候補集合の最低音のノートナンバー
-        double[][] fundFreq = new double[specLog.length][360];
-        for(int i = 0; i < fundFreq.length; i++){
-            for(int j = 0; j < 360; j++){
-                fundFreq[i][j] = melo_SHS(specLog[i], N + j * 0.1, nyquist, fftSize2);
-            }
-        }
+        // (各候補の倍音のビンの表は SHSEngine が一度だけ作る)
+        final SHSEngine shs = SHSEngine.of(nyquist, fftSize2, fftSize2, N, 360);
+        double[][] fundFreq = new double[specAbs.length][360];
+        FrameParallel.forEach(fundFreq.length, parallelism,
+                              (none, i) -> shs.scores(specAbs[i], fundFreq[i]));
         
         // 音高推定
-        double[] meloLike = new double[specLog.length];
-        for(int i = 0; i < specLog.length; i++){
+        double[] meloLike = new double[specAbs.length];
+        for(int i = 0; i < specAbs.length; i++){
             meloLike[i] = N + argmax(fundFreq[i]) / 10;
         }
         
         // データ系列を作成 
         final ObservableList<XYChart.Data<Number, Number>> data =
                 IntStream.range(0, meloLike.length)
-                    .mapToObj(i -> new XYChart.Data<Number, Number>(i / sampleRate * 400, meloLike[i]))
+                    .mapToObj(i -> new XYChart.Data<Number, Number>(begin + i / sampleRate * 400, meloLike[i]))
                     .collect(Collectors.toCollection(FXCollections::observableArrayList));
         
         // データ系列に名前をつける 
@@ -496,7 +461,7 @@ public final class Task1_VisualizeWav extends Application {
         
         /* x軸を作成 */
         final double duration = (waveform.length - 1) / sampleRate;
-        final NumberAxis xAxis = new NumberAxis("Time (seconds)", 0.0, duration,
+        final NumberAxis xAxis = new NumberAxis("Time (seconds)", begin, begin + duration,
                                                 Le4MusicUtils.autoTickUnit(duration));
         xAxis.setAnimated(false);
         
@@ -540,47 +505,4 @@ public final class Task1_VisualizeWav extends Application {
         }
         return argmax;
     }
-    
-    // 各音名のパワーを求める
-    // toneName は 0 ? 12 で C, C#, ... B に対応
-    public double chromaPower(double[] spec, int toneName, double nyquist, int fftSize){
-        double halfhalftone = Math.pow(2.0, 1.0/30.0);
-        double powerSum = 0;
-        double[] toneFreq = new double[12];
-        for(int i = 0; i < 12 ; i++){
-            toneFreq[i] = n_to_f(60+i);
-        }
-        
-        double[] baseFreq = new double[5];
-        int div = 1;
-        for(int i = 0; i <= 4; i++){
-            baseFreq[i] = toneFreq[toneName] * Math.pow(2.0, (double)(i-2));
-            for(int j = 0; j < spec.length; j++){
-                double frameFreq = spec[j];
-                if(freq(nyquist, fftSize, j) >= baseFreq[i] / halfhalftone
-                        && freq(nyquist, fftSize, j) <= baseFreq[i] * halfhalftone){
-                    powerSum += frameFreq;
-                    div++;
-                }
-            }
-        }
-        return powerSum / div;
-    }
-    
-    // SHSによりメロディの温厚を推定
-    public double melo_SHS(double[] spec, double toneNum, double nyquist, int fftSize){
-        int N = 5;  // 第 N 倍音までとる
-        double candFreq = n_to_f(toneNum);
-        double powerSum = 0;
-        
-        for(int i = 0; i < spec.length; i++){
-            for(int j = 1; j <= N; j++){
-                if(Math.abs(candFreq * j - freq(nyquist, fftSize, i)) < 10){
-                    powerSum += spec[i];
-                }
-            }
-        }
-        
-        return Math.abs(powerSum);
-    }
 }
@@ -0,0 +1,158 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+// 母音認識のモデル (母音ごと・ケプストラムの次元ごとの正規分布の平均 mu と分散 sigma2)
+// 学習した結果をバイナリのモデルファイルに書き出し、次からは学習用の音声を読まずに読み込む。
+// 読み込みは FileChannel.map でマップしたバッファから配列に一度に移すだけ。
+//
+// モデルファイル (リトルエンディアン)
+//   byte   'L' 'E' '4' 'V'
+//   int    版 (1)
+//   int    母音の数 V (5 : あ い う え お の順)
+//   int    次元数 D (ケプストラムの低次 13 項)
+//   double サンプリング周波数 (Hz)
+//   double フレーム長 (秒)
+//   double シフト長 (秒)
+//   double [V][D] mu
+//   double [V][D] sigma2
+public final class VowelModel {
+
+    // モデルファイルの識別子と版
+    private static final byte[] MAGIC = {'L', 'E', '4', 'V'};
+    public static final int VERSION = 1;
+    private static final int HEADER_BYTES = 40;
+
+    // 母音の名前 (モデルの母音の順)
+    public static final String[] VOWELS = {"a", "i", "u", "e", "o"};
+
+    private final double[][] mu;
+    private final double[][] sigma2;
+    private final double sampleRate;
+    private final double frameDuration;
+    private final double shiftDuration;
+
+    // mu[v][d], sigma2[v][d] : 母音 v の d 次のケプストラムの平均と分散
+    public VowelModel(double[][] mu, double[][] sigma2,
+                      double sampleRate, double frameDuration, double shiftDuration){
+        if(mu.length == 0 || mu.length != sigma2.length)
+            throw new IllegalArgumentException(
+                "mu and sigma2 must have the same number of vowels: " + mu.length + ", " + sigma2.length
+            );
+        final int dims = mu[0].length;
+        for(int v = 0; v < mu.length; v++){
+            if(mu[v].length != dims || sigma2[v].length != dims)
+                throw new IllegalArgumentException("vowel " + v + " does not have " + dims + " dimensions");
+        }
+        this.mu = new double[mu.length][];
+        this.sigma2 = new double[mu.length][];
+        for(int v = 0; v < mu.length; v++){
+            this.mu[v] = mu[v].clone();
+            this.sigma2[v] = sigma2[v].clone();
+        }
+        this.sampleRate = sampleRate;
+        this.frameDuration = frameDuration;
+        this.shiftDuration = shiftDuration;
+    }
+
+    // モデルファイルを読み込む
+    public static VowelModel load(File modelFile) throws IOException {
+        try(FileChannel channel = FileChannel.open(modelFile.toPath(), StandardOpenOption.READ)){
+            if(channel.size() < HEADER_BYTES)
+                throw new IOException("not a vowel model file: " + modelFile);
+            final ByteBuffer buf = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size())
+                                          .order(ByteOrder.LITTLE_ENDIAN);
+            for(byte b : MAGIC){
+                if(buf.get() != b) throw new IOException("not a vowel model file: " + modelFile);
+            }
+            final int version = buf.getInt();
+            if(version != VERSION)
+                throw new IOException("unsupported vowel model version " + version + ": " + modelFile);
+            final int vowels = buf.getInt();
+            final int dims = buf.getInt();
+            if(vowels < 1 || dims < 1 ||
+               channel.size() != HEADER_BYTES + 2L * vowels * dims * Double.BYTES)
+                throw new IOException("broken vowel model file: " + modelFile);
+            final double sampleRate = buf.getDouble();
+            final double frameDuration = buf.getDouble();
+            final double shiftDuration = buf.getDouble();
+
+            final DoubleBuffer values = buf.asDoubleBuffer();
+            final double[][] mu = new double[vowels][dims];
+            final double[][] sigma2 = new double[vowels][dims];
+            for(double[] m : mu) values.get(m);
+            for(double[] s : sigma2) values.get(s);
+            return new VowelModel(mu, sigma2, sampleRate, frameDuration, shiftDuration);
+        }
+    }
+
+    // file がモデルファイル (先頭が 'L' 'E' '4' 'V') か
+    public static boolean isModelFile(File file){
+        if(!file.isFile() || file.length() < HEADER_BYTES) return false;
+        try(FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)){
+            final ByteBuffer head = ByteBuffer.allocate(MAGIC.length);
+            while(head.hasRemaining() && channel.read(head) >= 0);
+            for(int i = 0; i < MAGIC.length; i++){
+                if(head.get(i) != MAGIC[i]) return false;
+            }
+            return true;
+        } catch(IOException e){
+            return false;
+        }
+    }
+
+    // モデルファイルに書き出す (一時ファイルに書いてから置き換える)
+    public void save(File modelFile) throws IOException {
+        final ByteBuffer buf = ByteBuffer.allocate(HEADER_BYTES + 2 * vowels() * dimensions() * Double.BYTES)
+                                         .order(ByteOrder.LITTLE_ENDIAN);
+        buf.put(MAGIC);
+        buf.putInt(VERSION);
+        buf.putInt(vowels());
+        buf.putInt(dimensions());
+        buf.putDouble(sampleRate);
+        buf.putDouble(frameDuration);
+        buf.putDouble(shiftDuration);
+        for(double[] m : mu){
+            for(double x : m) buf.putDouble(x);
+        }
+        for(double[] s : sigma2){
+            for(double x : s) buf.putDouble(x);
+        }
+        buf.flip();
+
+        final File dir = modelFile.getAbsoluteFile().getParentFile();
+        final File tmp = File.createTempFile(modelFile.getName(), ".tmp", dir);
+        try {
+            try(FileChannel channel = FileChannel.open(tmp.toPath(), StandardOpenOption.WRITE)){
+                while(buf.hasRemaining()) channel.write(buf);
+            }
+            Files.move(tmp.toPath(), modelFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        } finally {
+            Files.deleteIfExists(tmp.toPath());
+        }
+    }
+
+    // 母音の数
+    public int vowels(){ return mu.length; }
+
+    // ケプストラムの次元数
+    public int dimensions(){ return mu[0].length; }
+
+    // 母音 v の平均 (length = dimensions())
+    public double[] getMu(int v){ return mu[v]; }
+
+    // 母音 v の分散 (length = dimensions())
+    public double[] getSigma2(int v){ return sigma2[v]; }
+
+    public double getSampleRate(){ return sampleRate; }
+
+    public double getFrameDuration(){ return frameDuration; }
+
+    public double getShiftDuration(){ return shiftDuration; }
+}
@@ -0,0 +1,271 @@
+import java.io.File;
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.LongAdder;
+import javax.sound.sampled.AudioInputStream;
+import javax.sound.sampled.AudioSystem;
+import javax.sound.sampled.UnsupportedAudioFileException;
+
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.DefaultParser;
+import org.apache.commons.cli.HelpFormatter;
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.ParseException;
+
+import jp.ac.kyoto_u.kuis.le4music.Le4MusicUtils;
+
+// 母音認識 (LearnSpeechRecog_R の学習と認識を切り分けたもの)
+// モデル (VowelModel) を一度読み込めば、何本のファイルでも、どのスレッドからでも認識できる。
+// 各フレームのケプストラム (低次 13 項) を求め、母音ごとの対数尤度 (GaussianScorer) が最大の母音を選ぶ。
+// ケプストラムは CepstrumExtractor で求める。作業領域はスレッドごとに持ち、フレームごとに配列を作らない。
+public final class VowelRecognizer {
+
+    private static final Options options = new Options();
+    private static final String helpMessage =
+            MethodHandles.lookup().lookupClass().getName() + " [OPTIONS] <MODELFILE> <WAVFILE | DIR>...";
+
+    static{
+        // コマンドラインオプション定義
+        options.addOption("h", "help", false, "Display this help and exit");
+        options.addOption("j", "threads", true,
+                          "Number of files recognized in parallel (Default: " +
+                          Runtime.getRuntime().availableProcessors() + ")");
+        options.addOption("q", "quiet", false, "Print only the throughput");
+    }
+
+    private final VowelModel model;
+    private final GaussianScorer scorer;
+    private final int frameSize;
+    private final int shiftSize;
+    private final ThreadLocal<Scratch> scratch = ThreadLocal.withInitial(Scratch::new);
+    private int parallelism = FrameParallel.defaultParallelism();
+
+    /* 処理量 (frames / s の計算用) */
+    private final LongAdder frames = new LongAdder();
+    private final LongAdder nanos = new LongAdder();
+
+    // スレッドごとの作業領域
+    private final class Scratch {
+        final CepstrumExtractor extractor = new CepstrumExtractor(frameSize);
+        final double[] cep = new double[model.dimensions()];
+        final double[] like = new double[model.vowels()];
+    }
+
+    public VowelRecognizer(VowelModel model){
+        this.model = model;
+        this.scorer = new GaussianScorer(model);
+        this.frameSize = (int)Math.round(model.getFrameDuration() * model.getSampleRate());
+        this.shiftSize = (int)Math.round(model.getShiftDuration() * model.getSampleRate());
+    }
+
+    // 波形 waveform の区間 boundaries[v] 〜 boundaries[v + 1] 秒を母音 v として学習する
+    // (LearnSpeechRecog_R の aiueo_continuous.wav の区間など)
+    // 各母音の区間に収まるフレームのケプストラムの平均と分散を求める
+    public static VowelModel train(double[] waveform, double sampleRate,
+                                   double frameDuration, double shiftDuration,
+                                   double[] boundaries){
+        final int vowels = boundaries.length - 1;
+        final int dims = 13;
+        final double[][] mu = new double[vowels][dims];
+        final double[][] sigma2 = new double[vowels][dims];
+        final int frameSize = (int)Math.round(frameDuration * sampleRate);
+        final int shiftSize = (int)Math.round(shiftDuration * sampleRate);
+        final CepstrumExtractor extractor = new CepstrumExtractor(frameSize);
+
+        for(int v = 0; v < vowels; v++){
+            final int from = (int)Math.round(sampleRate * boundaries[v]);
+            final int to = Math.min(waveform.length, (int)Math.round(sampleRate * boundaries[v + 1]));
+            final int n = Math.max(0, (to - from - frameSize) / shiftSize + 1);
+            if(n == 0)
+                throw new IllegalArgumentException(
+                    "vowel " + v + " is shorter than a frame: " + boundaries[v] + " - " + boundaries[v + 1]
+                );
+            final double[][] cep = new double[n][dims];
+            extractor.cepstra(waveform, from, shiftSize, cep);
+            for(int d = 0; d < dims; d++){
+                for(int j = 0; j < n; j++) mu[v][d] += cep[j][d] / n;
+                for(int j = 0; j < n; j++) sigma2[v][d] += Math.pow(cep[j][d] - mu[v][d], 2) / n;
+            }
+        }
+        return new VowelModel(mu, sigma2, sampleRate, frameDuration, shiftDuration);
+    }
+
+    // 並列度を設定する (classify(double[]) のフレーム、classifyAll のファイル)
+    public void setParallelism(int parallelism){
+        this.parallelism = Math.max(1, parallelism);
+    }
+
+    public int getParallelism(){ return parallelism; }
+
+    // samples[from ..) から始まるフレームの母音 (モデルの母音の番号)
+    public int classifyFrame(double[] samples, int from){
+        return scorer.classify(cepstrum(samples, from), scratch.get().like);
+    }
+
+    // 波形 waveform の各フレームの母音 (フレーム i はサンプル i * shiftSize から)
+    // フレーム数は波形に収まる数 ((length - frameSize) / shiftSize + 1)
+    public int[] classify(double[] waveform){
+        final long start = System.nanoTime();
+        final int n = frameCount(waveform.length);
+        final int[] vowel = new int[n];
+        FrameParallel.forEach(n, parallelism, (s, i) -> vowel[i] = classifyFrame(waveform, i * shiftSize));
+        count(n, start);
+        return vowel;
+    }
+
+    // WAV ファイルの各フレームの母音 (呼び出し元のスレッドで逐次処理)
+    public int[] classify(File wavFile)
+        throws IOException,
+               UnsupportedAudioFileException {
+        final long start = System.nanoTime();
+        final double[] waveform = read(wavFile);
+        final int n = frameCount(waveform.length);
+        final int[] vowel = new int[n];
+        for(int i = 0; i < n; i++){
+            vowel[i] = classifyFrame(waveform, i * shiftSize);
+        }
+        count(n, start);
+        return vowel;
+    }
+
+    // 複数の WAV ファイルを並列に認識する (戻り値は wavFiles と同じ順)
+    // 失敗したファイルがあれば、最初に失敗したものの例外を投げる
+    public List<int[]> classifyAll(List<File> wavFiles)
+        throws IOException,
+               UnsupportedAudioFileException,
+               InterruptedException {
+        final ExecutorService pool = Executors.newFixedThreadPool(parallelism);
+        try {
+            final List<Future<int[]>> futures = new ArrayList<>();
+            for(File wavFile : wavFiles){
+                futures.add(pool.submit(() -> classify(wavFile)));
+            }
+            final List<int[]> results = new ArrayList<>();
+            for(Future<int[]> future : futures){
+                try {
+                    results.add(future.get());
+                } catch(ExecutionException e){
+                    final Throwable cause = e.getCause();
+                    if(cause instanceof IOException) throw (IOException)cause;
+                    if(cause instanceof UnsupportedAudioFileException) throw (UnsupportedAudioFileException)cause;
+                    if(cause instanceof RuntimeException) throw (RuntimeException)cause;
+                    throw new IllegalStateException(cause);
+                }
+            }
+            return results;
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    // WAV ファイルをモノラルで読み込む (サンプリング周波数はモデルと同じであること)
+    private double[] read(File wavFile)
+        throws IOException,
+               UnsupportedAudioFileException {
+        try(AudioInputStream stream = AudioSystem.getAudioInputStream(wavFile)){
+            if(stream.getFormat().getSampleRate() != model.getSampleRate())
+                throw new UnsupportedAudioFileException(
+                    wavFile + ": sample rate is " + stream.getFormat().getSampleRate() +
+                    " Hz, the model expects " + model.getSampleRate() + " Hz"
+                );
+            return Le4MusicUtils.readWaveformMonaural(stream);
+        }
+    }
+
+    // 長さ length の波形に収まるフレーム数
+    public int frameCount(int length){
+        return length < frameSize ? 0 : (length - frameSize) / shiftSize + 1;
+    }
+
+    // samples[from ..) から始まるフレームのケプストラムの低次の項 (このスレッドの作業領域を返す)
+    double[] cepstrum(double[] samples, int from){
+        final Scratch s = scratch.get();
+        s.extractor.cepstrum(samples, from, s.cep);
+        return s.cep;
+    }
+
+    // ケプストラム x に対する母音ごとの対数尤度を like (length = vowels) に書き込む
+    public void logLikelihood(double[] x, double[] like){
+        scorer.score(x, like);
+    }
+
+    private void count(int n, long start){
+        frames.add(n);
+        nanos.add(System.nanoTime() - start);
+    }
+
+    // これまでに認識したフレーム数
+    public long getFrames(){ return frames.sum(); }
+
+    // これまでの処理速度 (frames / s, classify を呼んでいた時間の合計あたり)
+    // classifyAll では並列に処理したファイルの時間を足し合わせるので、全体の速度は getFrames() / 経過時間で求めること
+    public double getFramesPerSecond(){
+        final long t = nanos.sum();
+        return t > 0 ? frames.sum() / (t / 1e9) : 0.0;
+    }
+
+    public VowelModel getModel(){ return model; }
+
+    public GaussianScorer getScorer(){ return scorer; }
+
+    public int getFrameSize(){ return frameSize; }
+
+    public int getShiftSize(){ return shiftSize; }
+
+    // モデルファイルを読み込み、WAV ファイル (ディレクトリなら中の *.wav) の各フレームの母音を出力する
+    public static void main(String[] args)
+        throws IOException,
+               InterruptedException,
+               UnsupportedAudioFileException,
+               ParseException {
+        /* コマンドライン引数処理 */
+        final CommandLine cmd = new DefaultParser().parse(options, args);
+        final String[] pargs = cmd.getArgs();
+        if(cmd.hasOption("help") || pargs.length < 2){
+            new HelpFormatter().printHelp(helpMessage, options);
+            return;
+        }
+        final VowelRecognizer recognizer = new VowelRecognizer(VowelModel.load(new File(pargs[0])));
+        recognizer.setParallelism(
+            Optional.ofNullable(cmd.getOptionValue("threads"))
+                    .map(Integer::parseInt)
+                    .orElse(Runtime.getRuntime().availableProcessors())
+        );
+
+        final List<File> wavFiles = new ArrayList<>();
+        for(int i = 1; i < pargs.length; i++){
+            final File file = new File(pargs[i]);
+            if(file.isDirectory()){
+                final File[] children = file.listFiles((dir, name) -> name.toLowerCase().endsWith(".wav"));
+                if(children == null) continue;
+                Arrays.sort(children);
+                wavFiles.addAll(Arrays.asList(children));
+            }else{
+                wavFiles.add(file);
+            }
+        }
+
+        /* 認識 (ファイルごとに並列) */
+        final long start = System.nanoTime();
+        final List<int[]> results = recognizer.classifyAll(wavFiles);
+        final double elapsed = (System.nanoTime() - start) / 1e9;
+        if(!cmd.hasOption("quiet")){
+            for(int i = 0; i < wavFiles.size(); i++){
+                final StringBuilder sb = new StringBuilder();
+                for(int v : results.get(i)) sb.append(VowelModel.VOWELS[v]);
+                System.out.println(wavFiles.get(i) + ": " + sb);
+            }
+        }
+        System.out.printf("%d files, %d frames, %.2f sec, %.0f frames/s%n",
+                          wavFiles.size(), recognizer.getFrames(), elapsed,
+                          recognizer.getFrames() / elapsed);
+    }
+}
@@ -0,0 +1,64 @@
+import java.util.Arrays;
+
+// フレームごとの母音の認識結果のちらつきを抑える
+// 直近 size フレームの多数決をとり、過半数を占めた母音に切り替える。
+// どの母音も過半数に届かない間は、前の結果をそのまま出す (母音の変わり目で行ったり来たりしない)。
+// 無音など母音でないフレームは NONE として同じように数える。
+//
+// update は 1 つのスレッド (データ処理スレッド) からだけ呼ぶこと。
+public final class VowelSmoother {
+
+    // 母音でない (無音など)
+    public static final int NONE = -1;
+
+    private final int[] history;    // 直近 size フレームの結果 (NONE は classes に置き換える)
+    private final int[] votes;      // 結果ごとの票数 (添字 classes が NONE)
+    private final int classes;
+    private int next = 0;
+    private int filled = 0;
+    private int current = NONE;
+
+    // size : 多数決をとるフレーム数, classes : 母音の数
+    public VowelSmoother(int size, int classes){
+        if(size < 1 || classes < 1)
+            throw new IllegalArgumentException(
+                "size and classes must be positive: size = " + size + ", classes = " + classes
+            );
+        this.history = new int[size];
+        this.votes = new int[classes + 1];
+        this.classes = classes;
+    }
+
+    // フレームの結果 label (0 .. classes-1 または NONE) を加え、ならした結果を返す
+    public int update(int label){
+        final int slot = label == NONE ? classes : label;
+        if(filled == history.length){
+            votes[history[next]]--;
+        }else{
+            filled++;
+        }
+        history[next] = slot;
+        votes[slot]++;
+        next = (next + 1) % history.length;
+
+        int best = 0;
+        for(int i = 1; i < votes.length; i++){
+            if(votes[i] > votes[best]) best = i;
+        }
+        if(2 * votes[best] > history.length){
+            current = best == classes ? NONE : best;
+        }
+        return current;
+    }
+
+    // 今の結果
+    public int current(){ return current; }
+
+    // 履歴を消す
+    public void reset(){
+        Arrays.fill(votes, 0);
+        next = 0;
+        filled = 0;
+        current = NONE;
+    }
+}
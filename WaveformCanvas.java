@@ -0,0 +1,134 @@
+import javafx.animation.AnimationTimer;
+import javafx.scene.canvas.Canvas;
+import javafx.scene.canvas.GraphicsContext;
+import javafx.scene.layout.Pane;
+import javafx.scene.paint.Color;
+
+// 波形を Canvas に直接描くビュー
+// LineChart に XYChart.Data をサンプル数だけ並べて毎フレーム書き換えると、
+// 1 点ごとにレイアウトやリスナーの処理が走る (16 kHz, 0.2 秒のフレームで 3200 点)。
+// ここでは double[] のサンプルをそのまま持ち、横 1 ピクセルに入るサンプルの最小値・最大値を
+// 縦線で結んで描く (描画の手間は画面の幅で決まり、サンプル数によらない)。
+//
+// setWaveform はどのスレッドから呼んでもよい (サンプルを写すだけで、描画はしない)。
+// 描画は JavaFX のパルスごとに、前回から波形が更新されていれば JavaFX アプリケーションスレッドで行う。
+public final class WaveformCanvas extends Pane {
+
+    private static final Color BACKGROUND = Color.WHITE;
+    private static final Color GRID = Color.LIGHTGRAY;
+    private static final Color WAVE = Color.STEELBLUE;
+    private static final Color LABEL = Color.BLACK;
+
+    private final Canvas canvas = new Canvas();
+    private final double ampBounds;
+
+    // setWaveform で書き込まれる波形 (this で排他する)
+    private final double[] pending;
+    private int pendingLength = 0;
+    private double pendingStart = 0.0;
+    private boolean dirty = false;
+
+    // 描画に使う波形 (JavaFX アプリケーションスレッドだけが使う)
+    private final double[] samples;
+    private int length = 0;
+    private double startTime = 0.0;
+    private final double sampleRate;
+
+    private final AnimationTimer timer = new AnimationTimer() {
+        @Override public void handle(long now){
+            if(take()) draw();
+        }
+    };
+
+    // capacity : 1 度に表示する最大のサンプル数, ampBounds : 縦軸の範囲 (-ampBounds 〜 +ampBounds)
+    public WaveformCanvas(int capacity, double sampleRate, double ampBounds){
+        if(capacity < 1)
+            throw new IllegalArgumentException("capacity must be positive: " + capacity);
+        this.pending = new double[capacity];
+        this.samples = new double[capacity];
+        this.sampleRate = sampleRate;
+        this.ampBounds = ampBounds;
+        getChildren().add(canvas);
+    }
+
+    // 表示する波形を frame[0 .. capacity) に置き換える (先頭のサンプルの時刻は startTime 秒)
+    public void setWaveform(double[] frame, double startTime){
+        final int n = Math.min(frame.length, pending.length);
+        synchronized(this){
+            System.arraycopy(frame, 0, pending, 0, n);
+            pendingLength = n;
+            pendingStart = startTime;
+            dirty = true;
+        }
+    }
+
+    // パルスごとの描画を始める
+    public void start(){ timer.start(); }
+
+    // パルスごとの描画をやめる
+    public void stop(){ timer.stop(); }
+
+    // 更新されていれば描画用の波形に写す
+    private boolean take(){
+        synchronized(this){
+            if(!dirty) return false;
+            System.arraycopy(pending, 0, samples, 0, pendingLength);
+            length = pendingLength;
+            startTime = pendingStart;
+            dirty = false;
+        }
+        return true;
+    }
+
+    @Override protected void layoutChildren(){
+        if(canvas.getWidth() != getWidth() || canvas.getHeight() != getHeight()){
+            canvas.setWidth(getWidth());
+            canvas.setHeight(getHeight());
+            draw();
+        }
+    }
+
+    // 横 1 ピクセルごとに、そこに入るサンプルの最小値から最大値までを縦線で描く
+    private void draw(){
+        final double w = canvas.getWidth(), h = canvas.getHeight();
+        final GraphicsContext gc = canvas.getGraphicsContext2D();
+        gc.setFill(BACKGROUND);
+        gc.fillRect(0, 0, w, h);
+        gc.setStroke(GRID);
+        gc.setLineWidth(1.0);
+        gc.strokeLine(0, h / 2, w, h / 2);
+        if(length == 0 || w < 1) return;
+
+        gc.setStroke(WAVE);
+        final int pixels = (int)w;
+        double prevMin = 0, prevMax = 0;
+        for(int px = 0; px < pixels; px++){
+            final int from = (int)((long)px * length / pixels);
+            final int to = Math.max(from + 1, (int)((long)(px + 1) * length / pixels));
+            double min = samples[from], max = samples[from];
+            for(int i = from + 1; i < to && i < length; i++){
+                if(samples[i] < min) min = samples[i];
+                if(samples[i] > max) max = samples[i];
+            }
+            // 隣のピクセルとつながるように、前の列の範囲まで伸ばす
+            final double lo = px > 0 ? Math.min(min, prevMax) : min;
+            final double hi = px > 0 ? Math.max(max, prevMin) : max;
+            gc.strokeLine(px + 0.5, y(hi, h), px + 0.5, y(lo, h));
+            prevMin = min;
+            prevMax = max;
+        }
+
+        /* 時刻と振幅の目盛り */
+        gc.setFill(LABEL);
+        gc.fillText(String.format("%.3f s", startTime), 4, h - 4);
+        gc.fillText(String.format("%.3f s", startTime + length / sampleRate), w - 60, h - 4);
+        gc.fillText(String.format("+%.2f", ampBounds), 4, 14);
+        gc.fillText(String.format("-%.2f", ampBounds), 4, h - 18);
+    }
+
+    // 振幅 v の縦位置 (範囲外は端に揃える)
+    private double y(double v, double h){
+        final double r = Math.max(-1.0, Math.min(1.0, v / ampBounds));
+        return (1.0 - r) * h / 2;
+    }
+}
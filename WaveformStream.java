@@ -0,0 +1,188 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Arrays;
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioInputStream;
+import javax.sound.sampled.AudioSystem;
+
+// WAV などの音声を少しずつ読み、フレーム単位の解析に渡す
+// Le4MusicUtils.readWaveformMonaural のように波形全体を double[] に読み込まず、
+// framesPerBlock 個のフレームを含む区間 (ブロック) ごとに読む。
+// 次のブロックには、まだ使い終わっていないサンプル (フレームの重なり部分) を持ち越す。
+//
+// フレーム i はサンプル i * shiftSize から始まる長さ span の区間。
+// フレーム数は全サンプル数 / shiftSize とし、末尾のフレームは 0 で埋める
+// (Le4MusicUtils.sliding, FeaturePipeline と同じ)。
+// ステレオなどの多チャネルの音声はチャネルの平均をとってモノラルにする。
+//
+// 使用メモリはブロックの長さ (framesPerBlock - 1) * shiftSize + span 程度で、ファイルの長さによらない。
+public final class WaveformStream implements Closeable {
+
+    // 1 ブロックのフレーム数の既定値
+    public static final int DEFAULT_FRAMES_PER_BLOCK = 256;
+
+    // フレームの集まり
+    // samples は次の next() の呼び出しで書き換えられるので、それまでに使うこと
+    public static final class Block {
+        private final double[] samples;
+        private final int shiftSize;
+        private int firstFrame;
+        private int frames;
+
+        private Block(double[] samples, int shiftSize){
+            this.samples = samples;
+            this.shiftSize = shiftSize;
+        }
+
+        // ブロックの波形 (先頭はフレーム firstFrame() の始まり、末尾は 0 で埋める)
+        public double[] samples(){ return samples; }
+
+        // ブロックの最初のフレームの番号
+        public int firstFrame(){ return firstFrame; }
+
+        // ブロックに含まれるフレーム数
+        public int frames(){ return frames; }
+
+        // ブロック内の k 番目のフレームが始まる samples の添字
+        public int frameStart(int k){ return k * shiftSize; }
+    }
+
+    private final AudioInputStream stream;
+    private final AudioFormat format;
+    private final int span;
+    private final int shiftSize;
+    private final int framesPerBlock;
+    private final Block block;
+    private final byte[] bytes;
+    private final int bytesPerFrame;
+    private final int sampleBytes;
+    private final boolean bigEndian;
+    private final boolean floating;
+    private final boolean unsigned;
+
+    private int valid = 0;          // block.samples のうち読み込み済みのサンプル数
+    private long samplesRead = 0;   // これまでに読んだサンプル数
+    private boolean started = false;
+    private boolean eof = false;
+
+    public WaveformStream(AudioInputStream stream, int span, int shiftSize){
+        this(stream, span, shiftSize, DEFAULT_FRAMES_PER_BLOCK);
+    }
+
+    public WaveformStream(AudioInputStream stream, int span, int shiftSize, int framesPerBlock){
+        if(span < 1 || shiftSize < 1 || framesPerBlock < 1)
+            throw new IllegalArgumentException(
+                "span, shiftSize and framesPerBlock must be positive: span = " + span +
+                ", shiftSize = " + shiftSize + ", framesPerBlock = " + framesPerBlock
+            );
+
+        // 整数・浮動小数点の PCM 以外 (μ-law など) は 16 bit PCM に変換して読む
+        final AudioFormat.Encoding encoding = stream.getFormat().getEncoding();
+        this.stream = (encoding.equals(AudioFormat.Encoding.PCM_SIGNED)
+                       || encoding.equals(AudioFormat.Encoding.PCM_UNSIGNED)
+                       || encoding.equals(AudioFormat.Encoding.PCM_FLOAT))
+                      ? stream
+                      : AudioSystem.getAudioInputStream(AudioFormat.Encoding.PCM_SIGNED, stream);
+        this.format = this.stream.getFormat();
+        this.bytesPerFrame = format.getFrameSize();
+        this.sampleBytes = bytesPerFrame / format.getChannels();
+        this.bigEndian = format.isBigEndian();
+        this.floating = format.getEncoding().equals(AudioFormat.Encoding.PCM_FLOAT);
+        this.unsigned = format.getEncoding().equals(AudioFormat.Encoding.PCM_UNSIGNED);
+
+        this.span = span;
+        this.shiftSize = shiftSize;
+        this.framesPerBlock = framesPerBlock;
+        this.block = new Block(new double[(framesPerBlock - 1) * shiftSize + span], shiftSize);
+        this.bytes = new byte[Math.max(1, framesPerBlock * shiftSize) * bytesPerFrame];
+    }
+
+    // 次のブロックを読む (もうフレームがなければ null)
+    public Block next() throws IOException {
+        final double[] samples = block.samples;
+        if(!started){
+            started = true;
+            block.firstFrame = 0;
+        }else{
+            // 使い終わったフレームの分だけ前に詰め、重なり部分を持ち越す
+            final int consumed = block.frames * shiftSize;
+            if(consumed == 0) return null;
+            final int keep = Math.max(0, valid - consumed);
+            System.arraycopy(samples, Math.min(consumed, valid), samples, 0, keep);
+            valid = keep;
+            block.firstFrame += block.frames;
+        }
+
+        fill(samples);
+
+        if(!eof){
+            block.frames = framesPerBlock;
+        }else{
+            // 末尾 : 全サンプル数 / shiftSize 個までのフレームを 0 で埋めて返す
+            Arrays.fill(samples, valid, samples.length, 0.0);
+            final long total = samplesRead / shiftSize;
+            block.frames = (int)Math.max(0, Math.min(framesPerBlock, total - block.firstFrame));
+        }
+        return block.frames > 0 ? block : null;
+    }
+
+    // samples[valid ..) をファイルから読んで埋める (ファイルの終わりなら eof を立てる)
+    private void fill(double[] samples) throws IOException {
+        final int channels = format.getChannels();
+        while(valid < samples.length && !eof){
+            final int want = Math.min(samples.length - valid, bytes.length / bytesPerFrame) * bytesPerFrame;
+            int got = 0;
+            while(got < want){
+                final int n = stream.read(bytes, got, want - got);
+                if(n < 0){ eof = true; break; }
+                got += n;
+            }
+            final int frames = got / bytesPerFrame;
+            for(int f = 0; f < frames; f++){
+                double sum = 0;
+                for(int c = 0; c < channels; c++){
+                    sum += decode(bytes, f * bytesPerFrame + c * sampleBytes);
+                }
+                samples[valid++] = sum / channels;
+            }
+            samplesRead += frames;
+        }
+    }
+
+    // 1 サンプルを [-1, 1) の値に変換する
+    private double decode(byte[] b, int off){
+        long v = 0;
+        for(int k = 0; k < sampleBytes; k++){
+            final int octet = b[off + (bigEndian ? k : sampleBytes - 1 - k)] & 0xff;
+            v = (v << 8) | octet;
+        }
+        if(floating){
+            return sampleBytes == 8 ? Double.longBitsToDouble(v) : Float.intBitsToFloat((int)v);
+        }
+        final int bits = sampleBytes * 8;
+        if(unsigned){
+            return (v - (1L << (bits - 1))) / (double)(1L << (bits - 1));
+        }
+        // 符号拡張
+        final long signed = (v << (64 - bits)) >> (64 - bits);
+        return signed / (double)(1L << (bits - 1));
+    }
+
+    public double getSampleRate(){ return format.getSampleRate(); }
+
+    public AudioFormat getFormat(){ return format; }
+
+    // ファイル全体のサンプル数 (ヘッダから分からなければ AudioSystem.NOT_SPECIFIED)
+    public long getFrameLength(){ return stream.getFrameLength(); }
+
+    // これまでに読んだサンプル数 (最後まで読めば全サンプル数)
+    public long getSamplesRead(){ return samplesRead; }
+
+    public int getSpan(){ return span; }
+
+    public int getShiftSize(){ return shiftSize; }
+
+    @Override public void close() throws IOException {
+        stream.close();
+    }
+}
@@ -0,0 +1,265 @@
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.function.Supplier;
+import javax.sound.sampled.UnsupportedAudioFileException;
+
+import jp.ac.kyoto_u.kuis.le4music.Le4MusicUtils;
+
+// ベンチマークで測る解析処理 (1 フレーム分)
+// 解析処理のクラスは無名パッケージにあり、JMH のベンチマーク (名前付きパッケージに置く必要がある)
+// からは import できないので、ここで入力を用意し、各処理を Supplier として渡す。
+// 呼び出すたびに次のフレームに進む (同じフレームばかりを測らないように)。
+// 名前が Float で終わる処理は単精度版 (FeaturePipeline.processFloat など)。
+// spectrogram / spectrogramFloat は入力全体の振幅スペクトログラムを毎回作るので、
+// GC プロファイラの gc.alloc.rate.norm がそのまま精度ごとのメモリ量になる。
+// visualizeLegacy / visualizeShared は Task1_VisualizeWav の 4 つのチャートの解析を入力全体について行う。
+// Legacy は以前のようにチャートごとに Le4MusicUtils.sliding + rfft + Complex.abs で STFT を行い (4 回)、
+// Shared は FeaturePipeline で 1 回だけ行って共有する。STFT より後の処理 (クロマ・和音・SHS) は同じ。
+//
+// 入力 : "synthetic" (ハーモニクスを持つ合成音 + 雑音, 16 kHz, 10 秒) または WAV ファイル名
+public final class AnalysisKernels {
+
+    public static final String SYNTHETIC = "synthetic";
+
+    // 処理の名前 → 処理
+    public static Map<String, Supplier<Object>> create(String input)
+        throws IOException,
+               UnsupportedAudioFileException {
+        return new AnalysisKernels(input).kernels;
+    }
+
+    private final Map<String, Supplier<Object>> kernels = new LinkedHashMap<>();
+    private final double[] waveform;
+    private final float[] waveformF;
+    private final double sampleRate;
+    private final FeaturePipeline pipeline;
+    private final double[][] specAbs;
+    private final float[][] specAbsF;
+    private final double[][] chromaVec;
+    private final double[][] cepstrum;
+    private final double[][] mu = new double[5][13];
+    private final double[][] sigma2 = new double[5][13];
+    private int frame = 0;
+
+    private AnalysisKernels(String input)
+        throws IOException,
+               UnsupportedAudioFileException {
+        /* 入力波形 */
+        if(SYNTHETIC.equals(input)){
+            this.sampleRate = 16000;
+            this.waveform = synthetic(sampleRate, 10.0);
+            this.waveformF = new float[waveform.length];
+            for(int i = 0; i < waveform.length; i++) waveformF[i] = (float)waveform[i];
+        }else{
+            final File wavFile = new File(System.getProperty("le4m.data", ".."), input);
+            try(MappedWaveform wav = MappedWaveform.open(wavFile)){
+                this.sampleRate = wav.getSampleRate();
+                this.waveform = wav.read(0, (int)wav.getLength());
+                this.waveformF = wav.readFloat(0, (int)wav.getLength());
+            }
+        }
+
+        /* 各処理の入力 (フレームごとの振幅スペクトル・クロマベクトル・ケプストラム) を先に求めておく */
+        this.pipeline = new FeaturePipeline(sampleRate,
+                                            Le4MusicUtils.frameDuration,
+                                            Le4MusicUtils.frameDuration / 8.0);
+        pipeline.setParallelism(1);
+        this.specAbs = pipeline.process(waveform);
+        this.specAbsF = pipeline.processFloat(waveformF);
+        final ChromaExtractor chroma = ChromaExtractor.of(pipeline.getNyquist(), pipeline.getFFTSize2());
+        this.chromaVec = new double[specAbs.length][17];
+        for(int i = 0; i < specAbs.length; i++){
+            chroma.chromaVector(specAbs[i], chromaVec[i]);
+        }
+        final CepstrumExtractor cepstra = new CepstrumExtractor(pipeline.getFrameSize());
+        this.cepstrum = new double[specAbs.length][13];
+        cepstra.cepstra(waveform, 0, pipeline.getShiftSize(), cepstrum);
+
+        // 母音モデルの代わり : フレームを 5 つに分けて、それぞれのケプストラムの平均と分散をとる
+        for(int v = 0; v < 5; v++){
+            final int from = cepstrum.length * v / 5, to = cepstrum.length * (v + 1) / 5;
+            for(int d = 0; d < 13; d++){
+                for(int n = from; n < to; n++) mu[v][d] += cepstrum[n][d] / (to - from);
+                for(int n = from; n < to; n++) sigma2[v][d] += Math.pow(cepstrum[n][d] - mu[v][d], 2) / (to - from);
+                if(sigma2[v][d] == 0) sigma2[v][d] = 1e-6;
+            }
+        }
+
+        final int frameSize = pipeline.getFrameSize();
+        final int shiftSize = pipeline.getShiftSize();
+        final RealFFT fft = pipeline.getFFT();
+        final double[] stftBuf = new double[fft.bufferSize()];
+        final double[] stftOut = new double[fft.size2()];
+        final float[] stftBufF = new float[fft.bufferSize()];
+        final float[] stftOutF = new float[fft.size2()];
+        final PitchTracker tracker = new PitchTracker(frameSize - 1, 10, frameSize - 2, 0.1);
+        final double[] chromaOut = new double[17];
+        final float[] chromaOutF = new float[17];
+        final double[] chordOut = new double[24];
+        final SHSEngine shs = SHSEngine.of(pipeline.getNyquist(), pipeline.getFFTSize2(),
+                                           pipeline.getFFTSize2(), 36, 360);
+        final double[] shsOut = new double[360];
+        final GaussianScorer scorer = new GaussianScorer(
+            new VowelModel(mu, sigma2, sampleRate, pipeline.getFrameDuration(), pipeline.getShiftDuration())
+        );
+        final double[] likeOut = new double[5];
+        final double[] cepOut = new double[13];
+
+        /* STFT (窓関数 + FFT + 振幅) */
+        kernels.put("stft", () -> {
+            pipeline.frame(waveform, next(), stftBuf);
+            fft.magnitude(stftBuf, stftOut);
+            return stftOut;
+        });
+        kernels.put("stftFloat", () -> {
+            pipeline.frameAt(waveformF, next() * shiftSize, stftBufF);
+            fft.magnitude(stftBufF, stftOutF);
+            return stftOutF;
+        });
+        /* 入力全体の振幅スペクトログラム */
+        kernels.put("spectrogram", () -> pipeline.process(waveform));
+        kernels.put("spectrogramFloat", () -> pipeline.processFloat(waveformF));
+        /* 自己相関による基本周波数 */
+        kernels.put("autocorrelationF0", () -> {
+            final int t = tracker.bestLag(waveform, next() * shiftSize, waveform.length);
+            return t > 0 ? sampleRate / t : 0.0;
+        });
+        /* クロマベクトル */
+        kernels.put("chroma", () -> {
+            chroma.chromaVector(specAbs[next()], chromaOut);
+            return chromaOut;
+        });
+        kernels.put("chromaFloat", () -> {
+            chroma.chromaVector(specAbsF[next()], chromaOutF);
+            return chromaOutF;
+        });
+        /* 和音のテンプレートとの照合 (makeChordChart と同じ重み) */
+        kernels.put("chordTemplate", () -> {
+            final double[] c = chromaVec[next()];
+            final double a_root = 1.0, a_3rd = 0.5, a_5th = 0.8;
+            for(int j = 0; j < 24; j++){
+                if(j < 12){
+                    chordOut[j] = a_root * c[j] + a_3rd * c[(j + 4) % 12] + a_5th * c[(j + 7) % 12];
+                }else{
+                    chordOut[j] = a_root * c[j % 12] + a_3rd * c[(j + 3) % 12] + a_5th * c[(j + 7) % 12];
+                }
+            }
+            return chordOut;
+        });
+        /* SHS によるメロディ */
+        kernels.put("shsMelody", () -> {
+            shs.scores(specAbs[next()], shsOut);
+            return shsOut;
+        });
+        /* ケプストラム (低次 13 項) */
+        kernels.put("cepstrum", () -> {
+            cepstra.cepstrum(waveform, next() * shiftSize, cepOut);
+            return cepOut;
+        });
+        /* 母音ごとの対数尤度 (GaussianScorer) */
+        kernels.put("vowelLikelihood", () -> {
+            scorer.score(cepstrum[next()], likeOut);
+            return likeOut;
+        });
+        /* 全フレームの母音ごとの対数尤度をまとめて */
+        kernels.put("vowelLikelihoodMatrix", () -> scorer.score(cepstrum));
+        /* Task1_VisualizeWav の 4 チャート分の解析 (STFT をチャートごとに 4 回 / 1 回だけで共有) */
+        kernels.put("visualizeLegacy", () ->
+            visualize(chroma, shs, legacySpecAbs(), legacySpecAbs(), legacySpecAbs(), legacySpecAbs())
+        );
+        kernels.put("visualizeShared", () -> {
+            final double[][] spec = pipeline.process(waveform);
+            return visualize(chroma, shs, spec, spec, null, spec);
+        });
+    }
+
+    // 以前の STFT (Le4MusicUtils.sliding + rfft + Complex.abs) による振幅スペクトログラム
+    private double[][] legacySpecAbs(){
+        return Le4MusicUtils.sliding(waveform, pipeline.getWindow(), pipeline.getShiftSize())
+                            .map(frame -> Le4MusicUtils.rfft(frame))
+                            .map(sp -> Arrays.stream(sp).mapToDouble(c -> c.abs()).toArray())
+                            .toArray(n -> new double[n][]);
+    }
+
+    // スペクトログラム・クロマグラム・和音・メロディの各チャートの解析 (チャートの作成は除く)
+    // 各チャートの振幅スペクトログラムを受け取る。forChord が null ならクロマグラムのクロマベクトルを和音でも使う
+    // 戻り値は {対数振幅スペクトログラム, クロマベクトル, 和音, メロディ}
+    private static Object[] visualize(ChromaExtractor chroma, SHSEngine shs,
+                                      double[][] forSpectrogram, double[][] forChromagram,
+                                      double[][] forChord, double[][] forMelody){
+        final int fftSize2 = forSpectrogram[0].length;
+        final double[][] specLog = new double[forSpectrogram.length][fftSize2];
+        for(int i = 0; i < specLog.length; i++){
+            for(int k = 0; k < fftSize2; k++){
+                specLog[i][k] = 20.0 * Math.log10(forSpectrogram[i][k]);
+            }
+        }
+
+        final double[][] chromaVec = chromaVectors(chroma, forChromagram);
+        final double[][] chordVec = forChord == null ? chromaVec : chromaVectors(chroma, forChord);
+        final int[] chord = new int[chordVec.length];
+        final double[] like = new double[24];
+        final double a_root = 1.0, a_3rd = 0.5, a_5th = 0.8;
+        for(int i = 0; i < chordVec.length; i++){
+            final double[] c = chordVec[i];
+            for(int j = 0; j < 24; j++){
+                if(j < 12){
+                    like[j] = a_root * c[j] + a_3rd * c[(j + 4) % 12] + a_5th * c[(j + 7) % 12];
+                }else{
+                    like[j] = a_root * c[j % 12] + a_3rd * c[(j + 3) % 12] + a_5th * c[(j + 7) % 12];
+                }
+            }
+            chord[i] = argmax(like);
+        }
+
+        final double[] scores = new double[360];
+        final double[] melody = new double[forMelody.length];
+        for(int i = 0; i < forMelody.length; i++){
+            shs.scores(forMelody[i], scores);
+            melody[i] = shs.note(argmax(scores));
+        }
+        return new Object[]{specLog, chromaVec, chord, melody};
+    }
+
+    private static double[][] chromaVectors(ChromaExtractor chroma, double[][] specAbs){
+        final double[][] chromaVec = new double[specAbs.length][17];
+        for(int i = 0; i < specAbs.length; i++){
+            chroma.chromaVector(specAbs[i], chromaVec[i]);
+        }
+        return chromaVec;
+    }
+
+    private static int argmax(double[] arr){
+        int argmax = 0;
+        for(int i = 1; i < arr.length; i++){
+            if(arr[argmax] < arr[i]) argmax = i;
+        }
+        return argmax;
+    }
+
+    // 次のフレーム番号
+    private int next(){
+        final int i = frame;
+        frame = (frame + 1) % specAbs.length;
+        return i;
+    }
+
+    // ハーモニクスを持つ合成音 (基本周波数が 1 秒ごとに変わる) + 雑音
+    private static double[] synthetic(double sampleRate, double duration){
+        final Random random = new Random(0);
+        final double[] x = new double[(int)(sampleRate * duration)];
+        for(int i = 0; i < x.length; i++){
+            final double f0 = 220.0 * Math.pow(2.0, (i / (int)sampleRate % 12) / 12.0);
+            double v = 0;
+            for(int h = 1; h <= 5; h++){
+                v += 0.3 / h * Math.sin(2.0 * Math.PI * f0 * h * i / sampleRate);
+            }
+            x[i] = v + 0.01 * random.nextGaussian();
+        }
+        return x;
+    }
+}
@@ -0,0 +1,89 @@
+package le4m.bench;
+
+import java.lang.reflect.Method;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+// 解析処理 1 フレーム分のスループット (ops/s)
+// 入力は合成音と同梱の WAV ファイル。処理そのものは AnalysisKernels (無名パッケージ) にある。
+// *Float は単精度版。spectrogram* と vowelLikelihoodMatrix は入力全体 (music.wav なら 400 フレーム) を 1 回とする。
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class AnalysisBenchmark {
+
+    @Param({"synthetic", "aiueo_continuous.wav", "chord.wav", "music.wav"})
+    public String input;
+
+    private Supplier<Object> stft;
+    private Supplier<Object> stftFloat;
+    private Supplier<Object> spectrogram;
+    private Supplier<Object> spectrogramFloat;
+    private Supplier<Object> autocorrelationF0;
+    private Supplier<Object> chroma;
+    private Supplier<Object> chromaFloat;
+    private Supplier<Object> chordTemplate;
+    private Supplier<Object> shsMelody;
+    private Supplier<Object> cepstrum;
+    private Supplier<Object> vowelLikelihood;
+    private Supplier<Object> vowelLikelihoodMatrix;
+
+    @SuppressWarnings("unchecked")
+    @Setup public void setup() throws Exception {
+        final Method create = Class.forName("AnalysisKernels").getMethod("create", String.class);
+        final Map<String, Supplier<Object>> kernels =
+                (Map<String, Supplier<Object>>)create.invoke(null, input);
+        stft = kernels.get("stft");
+        stftFloat = kernels.get("stftFloat");
+        spectrogram = kernels.get("spectrogram");
+        spectrogramFloat = kernels.get("spectrogramFloat");
+        autocorrelationF0 = kernels.get("autocorrelationF0");
+        chroma = kernels.get("chroma");
+        chromaFloat = kernels.get("chromaFloat");
+        chordTemplate = kernels.get("chordTemplate");
+        shsMelody = kernels.get("shsMelody");
+        cepstrum = kernels.get("cepstrum");
+        vowelLikelihood = kernels.get("vowelLikelihood");
+        vowelLikelihoodMatrix = kernels.get("vowelLikelihoodMatrix");
+    }
+
+    @Benchmark public Object stftFrame(){ return stft.get(); }
+
+    @Benchmark public Object stftFrameFloat(){ return stftFloat.get(); }
+
+    @Benchmark public Object spectrogram(){ return spectrogram.get(); }
+
+    @Benchmark public Object spectrogramFloat(){ return spectrogramFloat.get(); }
+
+    @Benchmark public Object autocorrelationF0(){ return autocorrelationF0.get(); }
+
+    @Benchmark public Object chroma(){ return chroma.get(); }
+
+    @Benchmark public Object chromaFloat(){ return chromaFloat.get(); }
+
+    @Benchmark public Object chordTemplate(){ return chordTemplate.get(); }
+
+    @Benchmark public Object shsMelody(){ return shsMelody.get(); }
+
+    @Benchmark public Object cepstrum(){ return cepstrum.get(); }
+
+    @Benchmark public Object vowelLikelihood(){ return vowelLikelihood.get(); }
+
+    @Benchmark public Object vowelLikelihoodMatrix(){ return vowelLikelihoodMatrix.get(); }
+}
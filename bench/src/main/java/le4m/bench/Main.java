@@ -0,0 +1,20 @@
+package le4m.bench;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+// ベンチマークの起動 (JMH のコマンドラインオプションをそのまま受け付ける)
+// 割り当て量 (gc.alloc.rate, gc.alloc.rate.norm) も出すように GC プロファイラを常に付ける
+public final class Main {
+
+    public static void main(String[] args) throws Exception {
+        final Options options = new OptionsBuilder()
+                .parent(new CommandLineOptions(args))
+                .addProfiler(GCProfiler.class)
+                .build();
+        new Runner(options).run();
+    }
+}
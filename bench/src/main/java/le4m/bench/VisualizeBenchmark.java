@@ -0,0 +1,62 @@
+package le4m.bench;
+
+import java.lang.reflect.Method;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+// Task1_VisualizeWav の 4 チャート分の解析 1 回の時間 (ms)
+// legacy : チャートごとに Le4MusicUtils.sliding + rfft + Complex.abs で STFT を行う (4 回)
+// shared : FeaturePipeline で STFT を 1 回だけ行い、各チャートで共有する
+// STFT より後の処理はどちらも同じ。処理そのものは AnalysisKernels (無名パッケージ) にある。
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class VisualizeBenchmark {
+
+    @Param({"synthetic", "chord.wav", "music.wav"})
+    public String input;
+
+    private Supplier<Object> legacy;
+    private Supplier<Object> shared;
+
+    @SuppressWarnings("unchecked")
+    @Setup public void setup() throws Exception {
+        final Method create = Class.forName("AnalysisKernels").getMethod("create", String.class);
+        final Map<String, Supplier<Object>> kernels =
+                (Map<String, Supplier<Object>>)create.invoke(null, input);
+        legacy = kernels.get("visualizeLegacy");
+        shared = kernels.get("visualizeShared");
+    }
+
+    @Benchmark public void legacy(Blackhole bh){
+        consume(legacy.get(), bh);
+    }
+
+    @Benchmark public void shared(Blackhole bh){
+        consume(shared.get(), bh);
+    }
+
+    // 各チャートの結果をすべて使う
+    private static void consume(Object results, Blackhole bh){
+        for(Object result : (Object[])results){
+            bh.consume(result);
+        }
+    }
+}